@@ -2,12 +2,42 @@ import java.io.FileOutputStream;
 import java.security.KeyPair;
 import java.security.KeyPairGenerator;
 import java.util.Base64;
+import javax.crypto.KeyGenerator;
 import java.io.File;
 
 public class KeyGen {
 
+    // Usage:
+    //   java KeyGen                  -> RSA-2048 pair in keys/
+    //   java KeyGen x25519 <role>    -> X25519 pair in keys/<role>/x25519_*.key (for -Dkeywrap=x25519)
+    //   java KeyGen index            -> HMAC-SHA256 key in keys/index/hmac.key (keyword search)
     public static void main(String[] args) throws Exception {
 
+        if (args.length >= 1 && "index".equalsIgnoreCase(args[0])) {
+            new File("keys/index").mkdirs();
+
+            KeyGenerator gen = KeyGenerator.getInstance("HmacSHA256");
+            gen.init(256);
+            write("keys/index/hmac.key", gen.generateKey().getEncoded());
+
+            System.out.println("Index key generated.");
+            return;
+        }
+
+        if (args.length >= 2 && "x25519".equalsIgnoreCase(args[0])) {
+            String dir = "keys/" + args[1];
+            new File(dir).mkdirs();
+
+            KeyPairGenerator gen = KeyPairGenerator.getInstance("X25519");
+            KeyPair pair = gen.generateKeyPair();
+
+            write(dir + "/x25519_public.key", pair.getPublic().getEncoded());
+            write(dir + "/x25519_private.key", pair.getPrivate().getEncoded());
+
+            System.out.println("X25519 keys generated in " + dir + ".");
+            return;
+        }
+
         new File("keys").mkdirs();
 
         KeyPairGenerator gen = KeyPairGenerator.getInstance("RSA");
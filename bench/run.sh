@@ -0,0 +1,15 @@
+#!/bin/sh
+# Builds the JMH module and runs every benchmark single- and multi-threaded with the GC profiler.
+# Results: bench/results/<timestamp>-t<threads>.json (compare runs with any JMH JSON viewer).
+# Extra JMH options pass through, e.g.  bench/run.sh CryptoBenchmark -p payloadBytes=64,4096
+set -e
+cd "$(dirname "$0")"
+
+mvn -q -B package
+mkdir -p results
+stamp=$(date +%Y%m%d-%H%M%S)
+
+for threads in 1 max; do
+    java -jar target/benchmarks.jar -prof gc -t "$threads" \
+        -rf json -rff "results/$stamp-t$threads.json" "$@"
+done
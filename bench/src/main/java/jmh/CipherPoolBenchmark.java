@@ -0,0 +1,50 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+import service.CryptoPool;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+// Per-field AES-GCM decrypt: Cipher.getInstance() per call (old path) vs the CryptoPool thread-local
+// instance. Run with -prof gc (bench/run.sh does) for the allocation difference.
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CipherPoolBenchmark {
+
+    private SecretKey key;
+    private final byte[] iv = new byte[12];
+    private byte[] ciphertext;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        key = keyGen.generateKey();
+        Cipher enc = Cipher.getInstance(CryptoPool.AES_GCM);
+        enc.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(128, iv));
+        ciphertext = enc.doFinal("Persistent cough, mild fever".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Benchmark
+    public byte[] getInstancePerField() throws Exception {
+        Cipher aes = Cipher.getInstance(CryptoPool.AES_GCM);
+        aes.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, iv));
+        return aes.doFinal(ciphertext);
+    }
+
+    @Benchmark
+    public byte[] pooled() throws Exception {
+        Cipher aes = CryptoPool.aesGcm();
+        aes.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(128, iv));
+        return aes.doFinal(ciphertext);
+    }
+}
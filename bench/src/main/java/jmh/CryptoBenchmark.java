@@ -0,0 +1,82 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import service.Decryptor;
+import service.Encryptor;
+import service.SegmentedGcm;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// AES field encryption (CipherEnvelope) and segmented media encryption, from clinical text to video sizes
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class CryptoBenchmark {
+
+    // 64 B clinical note, 4 KiB note, 1 MiB image, 100 MiB video
+    @Param({"64", "4096", "1048576", "104857600"})
+    public int payloadBytes;
+
+    private SecretKey aesKey;
+    private byte[] plaintext;
+    private byte[] envelope;
+    private byte[] segmented;
+    private final Encryptor encryptor = new Encryptor(null);
+    private final Decryptor decryptor = new Decryptor(null);
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        aesKey = keyGen.generateKey();
+
+        plaintext = new byte[payloadBytes];
+        new Random(42).nextBytes(plaintext);
+        envelope = encryptor.encryptBytesWithAES(plaintext, aesKey);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(payloadBytes + 1024);
+        try (OutputStream out = SegmentedGcm.encryptingStream(baos, aesKey)) {
+            out.write(plaintext);
+        }
+        segmented = baos.toByteArray();
+    }
+
+    @Benchmark
+    public byte[] encryptEnvelope() throws Exception {
+        return encryptor.encryptBytesWithAES(plaintext, aesKey);
+    }
+
+    @Benchmark
+    public byte[] decryptEnvelope() throws Exception {
+        return decryptor.decryptBytes(envelope, aesKey);
+    }
+
+    @Benchmark
+    public void encryptSegmented() throws Exception {
+        try (OutputStream out = SegmentedGcm.encryptingStream(OutputStream.nullOutputStream(), aesKey)) {
+            out.write(plaintext);
+        }
+    }
+
+    @Benchmark
+    public void decryptSegmented(Blackhole bh) throws Exception {
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = SegmentedGcm.decryptingStream(new ByteArrayInputStream(segmented), aesKey)) {
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                bh.consume(n);
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+import util.CryptoRandom;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+// 12-byte IV generation: SecureRandom.getInstanceStrong() per call (old Encryptor) vs the shared DRBG
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IvGenerationBenchmark {
+
+    private final byte[] iv = new byte[12];
+
+    @Benchmark
+    public byte[] strongPerCall() throws Exception {
+        SecureRandom.getInstanceStrong().nextBytes(iv);
+        return iv;
+    }
+
+    @Benchmark
+    public byte[] sharedDrbg() {
+        CryptoRandom.nextBytes(iv);
+        return iv;
+    }
+}
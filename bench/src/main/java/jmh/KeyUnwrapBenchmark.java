@@ -0,0 +1,53 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+import service.Decryptor;
+import service.Encryptor;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.concurrent.TimeUnit;
+
+// Per-record data key unwrap: RSA-2048 OAEP vs X25519
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class KeyUnwrapBenchmark {
+
+    private Decryptor rsaDecryptor;
+    private Decryptor x25519Decryptor;
+    private byte[] rsaWrapped;
+    private byte[] x25519Wrapped;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+        keyGen.init(256);
+        SecretKey dataKey = keyGen.generateKey();
+
+        KeyPairGenerator rsaGen = KeyPairGenerator.getInstance("RSA");
+        rsaGen.initialize(2048);
+        KeyPair rsa = rsaGen.generateKeyPair();
+        KeyPair x25519 = KeyPairGenerator.getInstance("X25519").generateKeyPair();
+
+        rsaWrapped = new Encryptor(rsa.getPublic()).wrapAESKey(dataKey);
+        x25519Wrapped = new Encryptor(x25519.getPublic()).wrapAESKey(dataKey);
+        rsaDecryptor = new Decryptor(rsa.getPrivate());
+        x25519Decryptor = new Decryptor(x25519.getPrivate());
+    }
+
+    @Benchmark
+    public SecretKey unwrapRsa() throws Exception {
+        return rsaDecryptor.decryptAESKey(rsaWrapped);
+    }
+
+    @Benchmark
+    public SecretKey unwrapX25519() throws Exception {
+        return x25519Decryptor.decryptAESKey(x25519Wrapped);
+    }
+}
@@ -0,0 +1,61 @@
+package jmh;
+
+import org.openjdk.jmh.annotations.*;
+import service.MediaService;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Media packaging: MediaService.zipFiles / unzipFiles for one image- or video-sized file
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class MediaBenchmark {
+
+    @Param({"65536", "1048576", "104857600"})
+    public int fileBytes;
+
+    private final MediaService mediaService = new MediaService();
+    private Path dir;
+    private List<Path> files;
+    private byte[] zipped;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dir = Files.createTempDirectory("media-bench");
+        Path file = dir.resolve("scan.mp4");
+        byte[] data = new byte[fileBytes];
+        new Random(7).nextBytes(data);
+        Files.write(file, data);
+        files = List.of(file);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(fileBytes + 1024);
+        mediaService.zipFiles(files, baos);
+        zipped = baos.toByteArray();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        for (Path p : files) Files.deleteIfExists(p);
+        Files.deleteIfExists(dir);
+    }
+
+    @Benchmark
+    public void zipFiles() throws Exception {
+        mediaService.zipFiles(files, OutputStream.nullOutputStream());
+    }
+
+    @Benchmark
+    public Map<String, byte[]> unzipFiles() throws Exception {
+        return mediaService.unzipFiles(zipped);
+    }
+}
@@ -0,0 +1,85 @@
+package repository;
+
+import model.PatientRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.reflect.Proxy;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+// Row mapping cost for search rows (no media columns) and full getById rows
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MapResultSetBenchmark {
+
+    private static final Set<PatientRecord.Part> ALL_PARTS = EnumSet.allOf(PatientRecord.Part.class);
+
+    private final MySQLHospitalRepository repository = new MySQLHospitalRepository();
+    private ResultSet searchRow;
+    private ResultSet fullRow;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(3);
+        Map<String, Object> columns = new HashMap<>();
+        columns.put("record_index", 42);
+        columns.put("patient_id_hash", "9f86d081884c7d659a2feaa0c55ad015a3bf4f1b2b0b822cd15d6c15b0f00a08");
+        columns.put("patient_name", "Jane Doe");
+        columns.put("patient_dob", Date.valueOf("1980-04-12"));
+        columns.put("check_in_date", Timestamp.valueOf("2025-01-02 08:30:00"));
+        columns.put("doctor_name", "mike");
+        columns.put("nurse_name", "N/A");
+        columns.put("encrypted_symptoms", bytes(random, 96));
+        columns.put("encrypted_diagnosis", bytes(random, 96));
+        columns.put("doctor_encrypted_aes_key", bytes(random, 256));
+        columns.put("nurse_encrypted_aes_key", bytes(random, 256));
+        searchRow = resultSet(new HashMap<>(columns));
+
+        columns.put("encrypted_images", bytes(random, 256 * 1024));
+        columns.put("encrypted_videos", bytes(random, 1024 * 1024));
+        fullRow = resultSet(columns);
+    }
+
+    @Benchmark
+    public PatientRecord mapSearchRow() throws SQLException {
+        return repository.mapResultSetToRecord(searchRow, MySQLHospitalRepository.SEARCH_PARTS);
+    }
+
+    @Benchmark
+    public PatientRecord mapFullRow() throws SQLException {
+        return repository.mapResultSetToRecord(fullRow, ALL_PARTS);
+    }
+
+    private static byte[] bytes(Random random, int n) {
+        byte[] b = new byte[n];
+        random.nextBytes(b);
+        return b;
+    }
+
+    // Minimal ResultSet: getX(String column) returns the stored value, unknown columns throw like the driver does
+    private static ResultSet resultSet(Map<String, Object> columns) {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(), new Class<?>[]{ResultSet.class},
+                (proxy, method, args) -> {
+                    if (args != null && args.length == 1 && args[0] instanceof String) {
+                        String column = (String) args[0];
+                        if (!columns.containsKey(column)) {
+                            throw new SQLException("Column '" + column + "' not found.");
+                        }
+                        return columns.get(column);
+                    }
+                    throw new UnsupportedOperationException(method.getName());
+                });
+    }
+}
@@ -0,0 +1,94 @@
+package server;
+
+import model.PatientRecord;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Response serialisation: search result rows and Base64 media payloads, streamed through JsonWriter
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+public class ToJsonBenchmark {
+
+    @Param({"1", "50", "500"})
+    public int rows;
+
+    @Param({"65536", "10485760"})
+    public int mediaBytes;
+
+    private List<PatientRecord> records;
+    private String[] decrypted;
+    private byte[] blob;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        records = new ArrayList<>();
+        for (int i = 0; i < rows; i++) {
+            PatientRecord r = new PatientRecord();
+            r.setRecordIndex(i);
+            r.setPatientName("Patient " + i);
+            r.setPatientDob(Date.valueOf("1980-04-12"));
+            r.setCheckInDate(Timestamp.valueOf("2025-01-02 08:30:00"));
+            r.setDoctorName("mike");
+            r.setNurseName("N/A");
+            records.add(r);
+        }
+        decrypted = new String[]{"Persistent cough, mild fever, fatigue for three days",
+                "Suspected community-acquired pneumonia"};
+
+        blob = new byte[mediaBytes];
+        new Random(5).nextBytes(blob);
+    }
+
+    @Benchmark
+    public long searchJson() throws IOException {
+        CountingStream out = new CountingStream();
+        try (JsonWriter json = new JsonWriter(out)) {
+            json.beginArray();
+            for (PatientRecord r : records) {
+                SimpleWebServer.writeSearchRow(json, r, decrypted);
+            }
+            json.endArray();
+        }
+        return out.count;
+    }
+
+    @Benchmark
+    public long mediaJson() throws IOException {
+        CountingStream out = new CountingStream();
+        try (JsonWriter json = new JsonWriter(out)) {
+            json.beginObject();
+            json.name("images").beginArray().base64Value(new ByteArrayInputStream(blob)).endArray();
+            json.name("videos").beginArray().endArray();
+            json.endObject();
+        }
+        return out.count;
+    }
+
+    // Stands in for the response body: counts what would be sent
+    private static class CountingStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -1,9 +1,29 @@
 package model;
 
+import java.nio.file.Path;
 import java.sql.Date;
 import java.sql.Timestamp;
+import java.util.EnumSet;
+import java.util.Set;
 
 public class PatientRecord {
+
+    // Column groups a repository read can project; media is by far the largest
+    public enum Part {
+        METADATA,   // name, dob, check-in, doctor, nurse, id hash
+        TEXT,       // encrypted symptoms and diagnosis
+        KEYS,       // wrapped data keys
+        MEDIA       // encrypted image and video archives
+    }
+
+    public enum MediaKind { IMAGES, VIDEOS }
+
+    // Stored columns that update() can write individually
+    public enum Field {
+        PATIENT_NAME, PATIENT_DOB, CHECK_IN_DATE, DOCTOR_NAME, NURSE_NAME,
+        SYMPTOMS, DIAGNOSIS, IMAGES, VIDEOS, DOCTOR_KEY, NURSE_KEY
+    }
+
     private int recordIndex;
     private String patientId; // Plaintext ID for input
     private String patientIdHash;
@@ -21,6 +41,50 @@ public class PatientRecord {
     private byte[] doctorEncryptedAesKey;
     private byte[] nurseEncryptedAesKey;
 
+    // Encrypted media spooled to disk by an upload; when set, the repository streams the file in
+    // place of the byte[] above (which is then null), so a large archive never sits in heap
+    private Path imagesFile;
+    private Path videosFile;
+
+    // Blind index tokens for Hospital_Record_Terms (null = leave the stored index as is)
+    private Set<String> termTokens;
+
+    // Leading bytes of each media archive, filled by scans that skip the archives themselves
+    private byte[] imagesPrefix;
+    private byte[] videosPrefix;
+
+    // Parts populated by the read that produced this record (new records hold everything)
+    private Set<Part> loadedParts = EnumSet.allOf(Part.class);
+    // Fields set since the record was read or last written (a new record counts as all dirty)
+    private Set<Field> dirtyFields = EnumSet.allOf(Field.class);
+
+    // Shallow copy: byte arrays are shared, which is safe because setters replace them rather than write into them
+    public PatientRecord copy() {
+        PatientRecord c = new PatientRecord();
+        c.recordIndex = recordIndex;
+        c.patientId = patientId;
+        c.patientIdHash = patientIdHash;
+        c.patientName = patientName;
+        c.patientDob = patientDob;
+        c.doctorName = doctorName;
+        c.nurseName = nurseName;
+        c.checkInDate = checkInDate;
+        c.encryptedSymptoms = encryptedSymptoms;
+        c.encryptedDiagnosis = encryptedDiagnosis;
+        c.encryptedImages = encryptedImages;
+        c.encryptedVideos = encryptedVideos;
+        c.doctorEncryptedAesKey = doctorEncryptedAesKey;
+        c.nurseEncryptedAesKey = nurseEncryptedAesKey;
+        c.imagesFile = imagesFile;
+        c.videosFile = videosFile;
+        c.termTokens = termTokens;
+        c.imagesPrefix = imagesPrefix;
+        c.videosPrefix = videosPrefix;
+        c.loadedParts = EnumSet.copyOf(loadedParts);
+        c.dirtyFields = dirtyFields.isEmpty() ? EnumSet.noneOf(Field.class) : EnumSet.copyOf(dirtyFields);
+        return c;
+    }
+
     // Getters and Setters
     public int getRecordIndex() { return recordIndex; }
     public void setRecordIndex(int recordIndex) { this.recordIndex = recordIndex; }
@@ -32,35 +96,62 @@ public class PatientRecord {
     public void setPatientIdHash(String patientIdHash) { this.patientIdHash = patientIdHash; }
 
     public String getPatientName() { return patientName; }
-    public void setPatientName(String patientName) { this.patientName = patientName; }
+    public void setPatientName(String patientName) { this.patientName = patientName; dirtyFields.add(Field.PATIENT_NAME); }
 
     public Date getPatientDob() { return patientDob; }
-    public void setPatientDob(Date patientDob) { this.patientDob = patientDob; }
+    public void setPatientDob(Date patientDob) { this.patientDob = patientDob; dirtyFields.add(Field.PATIENT_DOB); }
 
     public String getDoctorName() { return doctorName; }
-    public void setDoctorName(String doctorName) { this.doctorName = doctorName; }
+    public void setDoctorName(String doctorName) { this.doctorName = doctorName; dirtyFields.add(Field.DOCTOR_NAME); }
 
     public String getNurseName() { return nurseName; }
-    public void setNurseName(String nurseName) { this.nurseName = nurseName; }
+    public void setNurseName(String nurseName) { this.nurseName = nurseName; dirtyFields.add(Field.NURSE_NAME); }
 
     public Timestamp getCheckInDate() { return checkInDate; }
-    public void setCheckInDate(Timestamp checkInDate) { this.checkInDate = checkInDate; }
+    public void setCheckInDate(Timestamp checkInDate) { this.checkInDate = checkInDate; dirtyFields.add(Field.CHECK_IN_DATE); }
 
     public byte[] getEncryptedSymptoms() { return encryptedSymptoms; }
-    public void setEncryptedSymptoms(byte[] encryptedSymptoms) { this.encryptedSymptoms = encryptedSymptoms; }
+    public void setEncryptedSymptoms(byte[] encryptedSymptoms) { this.encryptedSymptoms = encryptedSymptoms; dirtyFields.add(Field.SYMPTOMS); }
 
     public byte[] getEncryptedDiagnosis() { return encryptedDiagnosis; }
-    public void setEncryptedDiagnosis(byte[] encryptedDiagnosis) { this.encryptedDiagnosis = encryptedDiagnosis; }
+    public void setEncryptedDiagnosis(byte[] encryptedDiagnosis) { this.encryptedDiagnosis = encryptedDiagnosis; dirtyFields.add(Field.DIAGNOSIS); }
 
     public byte[] getEncryptedImages() { return encryptedImages; }
-    public void setEncryptedImages(byte[] encryptedImages) { this.encryptedImages = encryptedImages; }
+    public void setEncryptedImages(byte[] encryptedImages) { this.encryptedImages = encryptedImages; imagesFile = null; dirtyFields.add(Field.IMAGES); }
 
     public byte[] getEncryptedVideos() { return encryptedVideos; }
-    public void setEncryptedVideos(byte[] encryptedVideos) { this.encryptedVideos = encryptedVideos; }
+    public void setEncryptedVideos(byte[] encryptedVideos) { this.encryptedVideos = encryptedVideos; videosFile = null; dirtyFields.add(Field.VIDEOS); }
+
+    public Path getEncryptedMediaFile(MediaKind kind) { return kind == MediaKind.IMAGES ? imagesFile : videosFile; }
+    public void setEncryptedMediaFile(MediaKind kind, Path file) {
+        if (kind == MediaKind.IMAGES) {
+            setEncryptedImages(null);
+            imagesFile = file;
+        } else {
+            setEncryptedVideos(null);
+            videosFile = file;
+        }
+    }
 
     public byte[] getDoctorEncryptedAesKey() { return doctorEncryptedAesKey; }
-    public void setDoctorEncryptedAesKey(byte[] doctorEncryptedAesKey) { this.doctorEncryptedAesKey = doctorEncryptedAesKey; }
+    public void setDoctorEncryptedAesKey(byte[] doctorEncryptedAesKey) { this.doctorEncryptedAesKey = doctorEncryptedAesKey; dirtyFields.add(Field.DOCTOR_KEY); }
 
     public byte[] getNurseEncryptedAesKey() { return nurseEncryptedAesKey; }
-    public void setNurseEncryptedAesKey(byte[] nurseEncryptedAesKey) { this.nurseEncryptedAesKey = nurseEncryptedAesKey; }
+    public void setNurseEncryptedAesKey(byte[] nurseEncryptedAesKey) { this.nurseEncryptedAesKey = nurseEncryptedAesKey; dirtyFields.add(Field.NURSE_KEY); }
+
+    public Set<String> getTermTokens() { return termTokens; }
+    public void setTermTokens(Set<String> termTokens) { this.termTokens = termTokens; }
+
+    public byte[] getMediaPrefix(MediaKind kind) { return kind == MediaKind.IMAGES ? imagesPrefix : videosPrefix; }
+    public void setMediaPrefix(MediaKind kind, byte[] prefix) {
+        if (kind == MediaKind.IMAGES) imagesPrefix = prefix; else videosPrefix = prefix;
+    }
+
+    public Set<Part> getLoadedParts() { return loadedParts; }
+    public void setLoadedParts(Set<Part> loadedParts) { this.loadedParts = EnumSet.copyOf(loadedParts); }
+    public boolean isLoaded(Part part) { return loadedParts.contains(part); }
+
+    public Set<Field> getDirtyFields() { return dirtyFields; }
+    public boolean isDirty() { return !dirtyFields.isEmpty(); }
+    public void clearDirty() { dirtyFields.clear(); }
 }
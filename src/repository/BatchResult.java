@@ -0,0 +1,46 @@
+package repository;
+
+import model.PatientRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Outcome of insertAll/updateAll: rows written, throughput, the records that failed with why, and
+// (for updateAllIfUnchanged) the records left alone because the stored row had changed meanwhile
+public class BatchResult {
+
+    private final int written;
+    private final long elapsedNanos;
+    private final Map<PatientRecord, Exception> failures;
+    private final List<PatientRecord> skipped;
+
+    public BatchResult(int written, long elapsedNanos, Map<PatientRecord, Exception> failures) {
+        this(written, elapsedNanos, failures, Collections.emptyList());
+    }
+
+    public BatchResult(int written, long elapsedNanos, Map<PatientRecord, Exception> failures, List<PatientRecord> skipped) {
+        this.written = written;
+        this.elapsedNanos = elapsedNanos;
+        this.failures = new LinkedHashMap<>(failures);
+        this.skipped = new ArrayList<>(skipped);
+    }
+
+    public int getWritten() { return written; }
+    public long getElapsedNanos() { return elapsedNanos; }
+    public Map<PatientRecord, Exception> getFailures() { return failures; }
+    public boolean hasFailures() { return !failures.isEmpty(); }
+    public List<PatientRecord> getSkipped() { return skipped; }
+
+    public double getRowsPerSecond() {
+        return elapsedNanos == 0 ? 0.0 : written / (elapsedNanos / 1_000_000_000.0);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d rows written, %d failed, %d skipped, %.0f rows/s",
+                written, failures.size(), skipped.size(), getRowsPerSecond());
+    }
+}
@@ -0,0 +1,304 @@
+package repository;
+
+import model.PatientRecord;
+import model.PatientRecord.Part;
+
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-through cache for getById in front of another repository. Records are cached exactly as
+ * stored (still encrypted) and callers always get a copy, so mutating a result never touches the cache.
+ *
+ *  - bounded by the estimated bytes held, not entry count; LRU eviction. A record bigger than a
+ *    quarter of the budget (large media) is served but not cached
+ *  - concurrent misses for the same id and projection share one delegate call
+ *  - every write (update, updateAll, updateWrappedKeys and the conditional forms) invalidates the
+ *    affected ids; a load that overlapped an invalidation is not stored, so a stale row cannot be
+ *    re-cached after an update, and callers arriving after the invalidation start a fresh load
+ *    instead of joining the overlapping one
+ *
+ * Everything except getById passes straight through.
+ */
+public class CachingHospitalRepository implements HospitalRepository {
+
+    public static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+    // Rough fixed cost per entry: object headers, dates, map node
+    private static final long ENTRY_OVERHEAD_BYTES = 256;
+
+    private final HospitalRepository delegate;
+    private final long maxBytes;
+    private final long maxEntryBytes;
+
+    // Access-ordered so the eldest entry is the least recently used one; guarded by itself
+    private final LinkedHashMap<Integer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    // Bumped on every invalidation; a load only stores its result if this did not move meanwhile
+    private long generation;
+
+    private final Map<String, CompletableFuture<PatientRecord>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public CachingHospitalRepository(HospitalRepository delegate) {
+        this(delegate, DEFAULT_MAX_BYTES);
+    }
+
+    public CachingHospitalRepository(HospitalRepository delegate, long maxBytes) {
+        if (maxBytes <= 0) throw new IllegalArgumentException("maxBytes must be positive");
+        this.delegate = delegate;
+        this.maxBytes = maxBytes;
+        this.maxEntryBytes = maxBytes / 4;
+    }
+
+    @Override
+    public PatientRecord getById(int recordIndex, Set<Part> parts) throws SQLException {
+        PatientRecord cached = lookup(recordIndex, parts);
+        if (cached != null) return cached.copy();
+
+        String key = recordIndex + ":" + parts;
+        CompletableFuture<PatientRecord> mine = new CompletableFuture<>();
+        CompletableFuture<PatientRecord> leader = inFlight.putIfAbsent(key, mine);
+        if (leader != null) {
+            coalesced.incrementAndGet();
+            PatientRecord shared = await(leader);
+            return shared == null ? null : shared.copy();
+        }
+
+        misses.incrementAndGet();
+        long startGeneration;
+        synchronized (entries) {
+            startGeneration = generation;
+        }
+        try {
+            PatientRecord loaded = delegate.getById(recordIndex, parts);
+            if (loaded != null) store(loaded, startGeneration);
+            mine.complete(loaded);
+            return loaded == null ? null : loaded.copy();
+        } catch (SQLException | RuntimeException e) {
+            mine.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+    }
+
+    @Override
+    public void update(PatientRecord record) throws SQLException {
+        try {
+            delegate.update(record);
+        } finally {
+            invalidate(record.getRecordIndex());
+        }
+    }
+
+    @Override
+    public boolean updateIfKeysUnchanged(PatientRecord record) throws SQLException {
+        try {
+            return delegate.updateIfKeysUnchanged(record);
+        } finally {
+            invalidate(record.getRecordIndex());
+        }
+    }
+
+    @Override
+    public BatchResult updateAll(List<PatientRecord> records, int batchSize) throws SQLException {
+        try {
+            return delegate.updateAll(records, batchSize);
+        } finally {
+            for (PatientRecord record : records) invalidate(record.getRecordIndex());
+        }
+    }
+
+    @Override
+    public BatchResult updateAllIfUnchanged(List<PatientRecord> records, List<PatientRecord> expected, int batchSize) throws SQLException {
+        try {
+            return delegate.updateAllIfUnchanged(records, expected, batchSize);
+        } finally {
+            for (PatientRecord record : records) invalidate(record.getRecordIndex());
+        }
+    }
+
+    @Override
+    public int updateWrappedKeys(boolean isDoctor, List<WrappedKeyUpdate> updates) throws SQLException {
+        try {
+            return delegate.updateWrappedKeys(isDoctor, updates);
+        } finally {
+            for (WrappedKeyUpdate update : updates) invalidate(update.getRecordIndex());
+        }
+    }
+
+    public void invalidate(int recordIndex) {
+        synchronized (entries) {
+            generation++;
+            Entry old = entries.remove(recordIndex);
+            if (old != null) bytes -= old.size;
+        }
+        // A load already under way may have read the row before the write; let it finish for the
+        // callers waiting on it, but take it out of the map so nobody new joins it
+        String prefix = recordIndex + ":";
+        inFlight.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            generation++;
+            entries.clear();
+            bytes = 0;
+        }
+        inFlight.clear();
+    }
+
+    // Fraction of getById calls answered without their own delegate call (hits plus coalesced waits)
+    public double getHitRate() {
+        long served = hits.get() + coalesced.get();
+        long total = served + misses.get();
+        return total == 0 ? 0.0 : (double) served / total;
+    }
+
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getCoalesced() { return coalesced.get(); }
+    public long getEvictions() { return evictions.get(); }
+
+    public long getBytes() {
+        synchronized (entries) {
+            return bytes;
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public String stats() {
+        return String.format("entries=%d bytes=%d/%d hitRate=%.2f hits=%d misses=%d coalesced=%d evictions=%d",
+                size(), getBytes(), maxBytes, getHitRate(), getHits(), getMisses(), getCoalesced(), getEvictions());
+    }
+
+    private PatientRecord lookup(int recordIndex, Set<Part> parts) {
+        synchronized (entries) {
+            Entry e = entries.get(recordIndex);
+            // An entry loaded with more parts than asked for still answers the request
+            if (e != null && e.record.getLoadedParts().containsAll(parts)) {
+                hits.incrementAndGet();
+                return e.record;
+            }
+        }
+        return null;
+    }
+
+    private void store(PatientRecord record, long startGeneration) {
+        long size = sizeOf(record);
+        if (size > maxEntryBytes) return;
+
+        synchronized (entries) {
+            if (generation != startGeneration) return;
+
+            Entry old = entries.get(record.getRecordIndex());
+            // Keep a wider projection already cached rather than replace it with a narrower one
+            if (old != null && old.record.getLoadedParts().containsAll(record.getLoadedParts())) return;
+
+            entries.put(record.getRecordIndex(), new Entry(record, size));
+            bytes += size - (old != null ? old.size : 0);
+
+            Iterator<Entry> it = entries.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                bytes -= eldest.size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private static PatientRecord await(CompletableFuture<PatientRecord> load) throws SQLException {
+        try {
+            return load.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a shared record load", e);
+        } catch (ExecutionException e) {
+            throw new SQLException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    static long sizeOf(PatientRecord r) {
+        return ENTRY_OVERHEAD_BYTES
+                + length(r.getEncryptedSymptoms()) + length(r.getEncryptedDiagnosis())
+                + length(r.getEncryptedImages()) + length(r.getEncryptedVideos())
+                + length(r.getDoctorEncryptedAesKey()) + length(r.getNurseEncryptedAesKey())
+                + 2L * (length(r.getPatientName()) + length(r.getPatientIdHash())
+                        + length(r.getDoctorName()) + length(r.getNurseName()));
+    }
+
+    private static long length(byte[] b) { return b == null ? 0 : b.length; }
+    private static long length(String s) { return s == null ? 0 : s.length(); }
+
+    private static class Entry {
+        final PatientRecord record;
+        final long size;
+
+        Entry(PatientRecord record, long size) {
+            this.record = record;
+            this.size = size;
+        }
+    }
+
+    // Pass-through
+
+    @Override
+    public void verifySchema() throws SQLException { delegate.verifySchema(); }
+
+    @Override
+    public void insert(PatientRecord record) throws SQLException { delegate.insert(record); }
+
+    @Override
+    public BatchResult insertAll(List<PatientRecord> records, int batchSize) throws SQLException {
+        return delegate.insertAll(records, batchSize);
+    }
+
+    @Override
+    public SearchPage search(String query, String type, String cursor, int pageSize) throws SQLException {
+        return delegate.search(query, type, cursor, pageSize);
+    }
+
+    @Override
+    public SearchPage searchByTerms(List<String> termTokens, String cursor, int pageSize) throws SQLException {
+        return delegate.searchByTerms(termTokens, cursor, pageSize);
+    }
+
+    @Override
+    public MediaBlob openMediaBlob(int recordIndex, PatientRecord.MediaKind kind) throws SQLException {
+        return delegate.openMediaBlob(recordIndex, kind);
+    }
+
+    // Same bytes in another place, so nothing cached goes stale
+    @Override
+    public int relocateLegacyMedia(List<Integer> recordIndexes) throws SQLException {
+        return delegate.relocateLegacyMedia(recordIndexes);
+    }
+
+    @Override
+    public List<PatientRecord> scanAfter(int afterRecordIndex, int limit, int mediaPrefixBytes) throws SQLException {
+        return delegate.scanAfter(afterRecordIndex, limit, mediaPrefixBytes);
+    }
+
+    @Override
+    public List<PatientRecord> scanWrappedKeysAfter(int afterRecordIndex, int limit) throws SQLException {
+        return delegate.scanWrappedKeysAfter(afterRecordIndex, limit);
+    }
+}
@@ -0,0 +1,99 @@
+package repository;
+
+import java.sql.Date;
+import java.time.DateTimeException;
+import java.time.LocalDate;
+import java.time.Year;
+import java.time.YearMonth;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns a date-of-birth search string into an index-friendly predicate on patient_dob:
+ *
+ *   "1980"        -> patient_dob BETWEEN 1980-01-01 AND 1980-12-31
+ *   "1980-04"     -> patient_dob BETWEEN 1980-04-01 AND 1980-04-30
+ *   "1980-04-12"  -> patient_dob = 1980-04-12
+ *   "04-12"       -> patient_dob IN (1900-04-12, 1901-04-12, ... this year), one index probe per year
+ *
+ * Anything else has no plan and the caller falls back to a string match.
+ */
+final class DobQueryPlanner {
+
+    // Oldest birth year considered for month-day searches; override with -Dsearch.dobMinYear
+    private static final int MIN_YEAR = Integer.getInteger("search.dobMinYear", 1900);
+
+    private static final Pattern YEAR = Pattern.compile("(\\d{4})");
+    private static final Pattern YEAR_MONTH = Pattern.compile("(\\d{4})-(\\d{1,2})");
+    private static final Pattern FULL_DATE = Pattern.compile("(\\d{4})-(\\d{1,2})-(\\d{1,2})");
+    private static final Pattern MONTH_DAY = Pattern.compile("(\\d{1,2})-(\\d{1,2})");
+
+    static final class Plan {
+        final String predicate;
+        final List<Object> params;
+        // The same condition as ascending, inclusive [from, to] date ranges (for non-SQL repositories)
+        final List<LocalDate[]> ranges;
+
+        Plan(String predicate, List<Object> params, List<LocalDate[]> ranges) {
+            this.predicate = predicate;
+            this.params = params;
+            this.ranges = ranges;
+        }
+    }
+
+    private DobQueryPlanner() {}
+
+    static Plan plan(String query) {
+        return plan(query, LocalDate.now());
+    }
+
+    static Plan plan(String query, LocalDate today) {
+        if (query == null) return null;
+        String q = query.trim();
+        try {
+            Matcher m;
+            if ((m = YEAR.matcher(q)).matches()) {
+                int year = Integer.parseInt(m.group(1));
+                return between(LocalDate.of(year, 1, 1), LocalDate.of(year, 12, 31));
+            }
+            if ((m = YEAR_MONTH.matcher(q)).matches()) {
+                YearMonth month = YearMonth.of(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)));
+                return between(month.atDay(1), month.atEndOfMonth());
+            }
+            if ((m = FULL_DATE.matcher(q)).matches()) {
+                LocalDate date = LocalDate.of(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), Integer.parseInt(m.group(3)));
+                return new Plan("patient_dob = ?", List.of(Date.valueOf(date)), List.<LocalDate[]>of(new LocalDate[]{date, date}));
+            }
+            if ((m = MONTH_DAY.matcher(q)).matches()) {
+                return monthDay(Integer.parseInt(m.group(1)), Integer.parseInt(m.group(2)), today);
+            }
+        } catch (DateTimeException e) {
+            // Out-of-range month or day: no plan
+        }
+        return null;
+    }
+
+    private static Plan between(LocalDate from, LocalDate to) {
+        return new Plan("patient_dob BETWEEN ? AND ?", List.of(Date.valueOf(from), Date.valueOf(to)),
+                List.<LocalDate[]>of(new LocalDate[]{from, to}));
+    }
+
+    private static Plan monthDay(int month, int day, LocalDate today) {
+        // Validates month/day (Feb 29 against a leap year)
+        LocalDate.of(2000, month, day);
+
+        List<Object> dates = new ArrayList<>();
+        List<LocalDate[]> ranges = new ArrayList<>();
+        for (int year = MIN_YEAR; year <= today.getYear(); year++) {
+            if (month == 2 && day == 29 && !Year.isLeap(year)) continue;
+            LocalDate date = LocalDate.of(year, month, day);
+            dates.add(Date.valueOf(date));
+            ranges.add(new LocalDate[]{date, date});
+        }
+        if (dates.isEmpty()) return null;
+        return new Plan("patient_dob IN (" + String.join(", ", Collections.nCopies(dates.size(), "?")) + ")", dates, ranges);
+    }
+}
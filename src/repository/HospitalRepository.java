@@ -1,12 +1,65 @@
 package repository;
 
 import model.PatientRecord;
+import java.io.InputStream;
 import java.sql.SQLException;
+import java.util.EnumSet;
 import java.util.List;
+import java.util.Set;
 
 public interface HospitalRepository {
+    // Rows per batch/transaction for insertAll/updateAll; override with -Drepository.batchSize
+    int DEFAULT_BATCH_SIZE = Integer.getInteger("repository.batchSize", 500);
+
+    // Check that the indexes search depends on exist; storage without a schema has nothing to check
+    default void verifySchema() throws SQLException {}
+
     void insert(PatientRecord record) throws SQLException;
     void update(PatientRecord record) throws SQLException;
-    List<PatientRecord> search(String query, String type) throws SQLException;
-    PatientRecord getById(int recordIndex) throws SQLException;
+    // Like update, but only while the row still holds the wrapped keys the record was read with, so
+    // ciphertext made under that data key never lands next to another; false (nothing written) if not
+    boolean updateIfKeysUnchanged(PatientRecord record) throws SQLException;
+    // Batched, transactional bulk writes; failed rows are reported per record in the result
+    BatchResult insertAll(List<PatientRecord> records, int batchSize) throws SQLException;
+    BatchResult updateAll(List<PatientRecord> records, int batchSize) throws SQLException;
+    default BatchResult insertAll(List<PatientRecord> records) throws SQLException {
+        return insertAll(records, DEFAULT_BATCH_SIZE);
+    }
+    default BatchResult updateAll(List<PatientRecord> records) throws SQLException {
+        return updateAll(records, DEFAULT_BATCH_SIZE);
+    }
+    // Like updateAll, but each row is written only if the stored wrapped keys, and the stored value of
+    // every text column being rewritten, still equal expected (the rows as read, same order). Rows
+    // that no longer match are reported in BatchResult.getSkipped, not as failures
+    BatchResult updateAllIfUnchanged(List<PatientRecord> records, List<PatientRecord> expected, int batchSize) throws SQLException;
+    // Keyset-paginated search; pass the previous page's nextCursor (or null for the first page)
+    SearchPage search(String query, String type, String cursor, int pageSize) throws SQLException;
+    // Records whose blind index contains every given token, paginated by record_index
+    SearchPage searchByTerms(List<String> termTokens, String cursor, int pageSize) throws SQLException;
+    // Only the requested column groups are read; the record's loadedParts says which ones it holds
+    PatientRecord getById(int recordIndex, Set<PatientRecord.Part> parts) throws SQLException;
+    default PatientRecord getById(int recordIndex) throws SQLException {
+        return getById(recordIndex, EnumSet.allOf(PatientRecord.Part.class));
+    }
+    // The record's current encrypted media archive of this kind, pinned for consistent range reads;
+    // null if it has none (or there is no such record)
+    MediaBlob openMediaBlob(int recordIndex, PatientRecord.MediaKind kind) throws SQLException;
+    // Whole archive as a stream (null if empty), read in bounded windows rather than buffered whole
+    default InputStream openMedia(int recordIndex, PatientRecord.MediaKind kind) throws SQLException {
+        MediaBlob blob = openMediaBlob(recordIndex, kind);
+        return blob == null ? null : blob.open(0, blob.length());
+    }
+    // Storage upkeep for the envelope migrator: move the media of these rows out of any older storage
+    // layout into the current one. Returns how many archives were moved; nothing to do by default
+    default int relocateLegacyMedia(List<Integer> recordIndexes) throws SQLException {
+        return 0;
+    }
+    // Rows with record_index > afterRecordIndex, in record_index order (for background jobs): text and
+    // wrapped keys only, plus the first mediaPrefixBytes of each media archive (PatientRecord.getMediaPrefix)
+    List<PatientRecord> scanAfter(int afterRecordIndex, int limit, int mediaPrefixBytes) throws SQLException;
+    // Like scanAfter, but only record_index and the two wrapped data keys are populated
+    List<PatientRecord> scanWrappedKeysAfter(int afterRecordIndex, int limit) throws SQLException;
+    // Batched write of one role's wrapped key column (doctor_encrypted_aes_key or nurse_encrypted_aes_key),
+    // each row only if it still holds the expected value; returns how many rows were written
+    int updateWrappedKeys(boolean isDoctor, List<WrappedKeyUpdate> updates) throws SQLException;
 }
@@ -0,0 +1,507 @@
+package repository;
+
+import model.PatientRecord;
+import model.PatientRecord.Field;
+import model.PatientRecord.MediaKind;
+import model.PatientRecord.Part;
+import util.Hashing;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * In-process HospitalRepository for load tests and profiling without MySQL (-Drepository=memory).
+ * Rows live in a record_index-ordered map with secondary indexes on id hash, name, dob and blind
+ * index terms, and search follows MySQLHospitalRepository: same match rules, same ordering, same
+ * cursors. Names compare case-insensitively, as under MySQL's default collation.
+ *
+ * Writes are serialised; reads are lock-free and re-check each row against the predicate, so a
+ * reader racing an update never returns a row that does not match.
+ */
+public class InMemoryHospitalRepository implements HospitalRepository {
+
+    private static final Set<Part> SEARCH_PARTS = MySQLHospitalRepository.SEARCH_PARTS;
+
+    private final ConcurrentSkipListMap<Integer, PatientRecord> rows = new ConcurrentSkipListMap<>();
+    private final AtomicInteger nextIndex = new AtomicInteger(1);
+
+    private final Map<String, NavigableSet<Integer>> byIdHash = new ConcurrentHashMap<>();
+    // Lower-cased name -> record indexes, in name order
+    private final ConcurrentSkipListMap<String, NavigableSet<Integer>> byName = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<LocalDate, NavigableSet<Integer>> byDob = new ConcurrentSkipListMap<>();
+    private final Map<String, NavigableSet<Integer>> byTerm = new ConcurrentHashMap<>();
+    private final Map<Integer, Set<String>> termsOf = new ConcurrentHashMap<>();
+
+    private final Object writeLock = new Object();
+
+    @Override
+    public void insert(PatientRecord record) throws SQLException {
+        synchronized (writeLock) {
+            record.setRecordIndex(nextIndex.getAndIncrement());
+            PatientRecord row = record.copy();
+            for (MediaKind kind : MediaKind.values()) {
+                if (record.getEncryptedMediaFile(kind) != null) copyMedia(record, row, kind);
+            }
+            row.setPatientId(null);
+            row.setPatientIdHash(Hashing.sha256(record.getPatientId()));
+            row.setTermTokens(null);
+            row.setLoadedParts(EnumSet.allOf(Part.class));
+            row.clearDirty();
+            put(row);
+            writeTerms(row.getRecordIndex(), record.getTermTokens());
+        }
+        record.clearDirty();
+    }
+
+    @Override
+    public void update(PatientRecord record) throws SQLException {
+        synchronized (writeLock) {
+            PatientRecord old = rows.get(record.getRecordIndex());
+            if (old != null) apply(old, record);
+        }
+        record.clearDirty();
+    }
+
+    @Override
+    public boolean updateIfKeysUnchanged(PatientRecord record) throws SQLException {
+        Set<Field> dirty = record.getDirtyFields();
+        if (dirty.contains(Field.DOCTOR_KEY) || dirty.contains(Field.NURSE_KEY)) {
+            throw new IllegalArgumentException("Wrapped keys are the guard and cannot be changed by a guarded update");
+        }
+        synchronized (writeLock) {
+            PatientRecord old = rows.get(record.getRecordIndex());
+            if (old == null
+                    || !Arrays.equals(old.getDoctorEncryptedAesKey(), record.getDoctorEncryptedAesKey())
+                    || !Arrays.equals(old.getNurseEncryptedAesKey(), record.getNurseEncryptedAesKey())) {
+                return false;
+            }
+            apply(old, record);
+        }
+        record.clearDirty();
+        return true;
+    }
+
+    // Apply only the fields set since the record was read, like the MySQL minimal UPDATE; caller holds writeLock
+    private void apply(PatientRecord old, PatientRecord record) {
+        PatientRecord row = old.copy();
+        for (Field field : record.getDirtyFields()) {
+            copyField(record, row, field);
+        }
+        row.clearDirty();
+        put(row);
+        dropStale(old, row);
+        writeTerms(row.getRecordIndex(), record.getTermTokens());
+    }
+
+    // Rows here are plain byte arrays, so spooled upload media is read in
+    private static void copyMedia(PatientRecord from, PatientRecord to, MediaKind kind) {
+        byte[] data = kind == MediaKind.IMAGES ? from.getEncryptedImages() : from.getEncryptedVideos();
+        Path file = from.getEncryptedMediaFile(kind);
+        if (file != null) {
+            try {
+                data = Files.readAllBytes(file);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (kind == MediaKind.IMAGES) to.setEncryptedImages(data); else to.setEncryptedVideos(data);
+    }
+
+    private static void copyField(PatientRecord from, PatientRecord to, Field field) {
+        switch (field) {
+            case PATIENT_NAME -> to.setPatientName(from.getPatientName());
+            case PATIENT_DOB -> to.setPatientDob(from.getPatientDob());
+            case CHECK_IN_DATE -> to.setCheckInDate(from.getCheckInDate());
+            case DOCTOR_NAME -> to.setDoctorName(from.getDoctorName());
+            case NURSE_NAME -> to.setNurseName(from.getNurseName());
+            case SYMPTOMS -> to.setEncryptedSymptoms(from.getEncryptedSymptoms());
+            case DIAGNOSIS -> to.setEncryptedDiagnosis(from.getEncryptedDiagnosis());
+            case IMAGES -> copyMedia(from, to, MediaKind.IMAGES);
+            case VIDEOS -> copyMedia(from, to, MediaKind.VIDEOS);
+            case DOCTOR_KEY -> to.setDoctorEncryptedAesKey(from.getDoctorEncryptedAesKey());
+            case NURSE_KEY -> to.setNurseEncryptedAesKey(from.getNurseEncryptedAesKey());
+        }
+    }
+
+    @Override
+    public BatchResult insertAll(List<PatientRecord> records, int batchSize) throws SQLException {
+        return writeAll(records, true);
+    }
+
+    @Override
+    public BatchResult updateAll(List<PatientRecord> records, int batchSize) throws SQLException {
+        return writeAll(records, false);
+    }
+
+    @Override
+    public BatchResult updateAllIfUnchanged(List<PatientRecord> records, List<PatientRecord> expected, int batchSize) throws SQLException {
+        if (records.size() != expected.size()) throw new IllegalArgumentException("expected must pair up with records");
+        long start = System.nanoTime();
+        int written = 0;
+        Map<PatientRecord, Exception> failures = new LinkedHashMap<>();
+        List<PatientRecord> skipped = new ArrayList<>();
+        for (int i = 0; i < records.size(); i++) {
+            PatientRecord record = records.get(i);
+            try {
+                boolean done;
+                synchronized (writeLock) {
+                    PatientRecord old = rows.get(record.getRecordIndex());
+                    done = unchanged(record, expected.get(i), old);
+                    if (done) apply(old, record);
+                }
+                if (done) {
+                    record.clearDirty();
+                    written++;
+                } else {
+                    skipped.add(record);
+                }
+            } catch (RuntimeException e) {
+                failures.put(record, e);
+            }
+        }
+        return new BatchResult(written, System.nanoTime() - start, failures, skipped);
+    }
+
+    // Same test as the MySQL row lock: wrapped keys, and the text columns being rewritten, as expected
+    private static boolean unchanged(PatientRecord record, PatientRecord expected, PatientRecord stored) {
+        if (expected == null || stored == null) return false;
+        if (!Arrays.equals(stored.getDoctorEncryptedAesKey(), expected.getDoctorEncryptedAesKey())
+                || !Arrays.equals(stored.getNurseEncryptedAesKey(), expected.getNurseEncryptedAesKey())) {
+            return false;
+        }
+        Set<Field> dirty = record.getDirtyFields();
+        return (!dirty.contains(Field.SYMPTOMS) || Arrays.equals(stored.getEncryptedSymptoms(), expected.getEncryptedSymptoms()))
+                && (!dirty.contains(Field.DIAGNOSIS) || Arrays.equals(stored.getEncryptedDiagnosis(), expected.getEncryptedDiagnosis()));
+    }
+
+    private BatchResult writeAll(List<PatientRecord> records, boolean insert) {
+        long start = System.nanoTime();
+        int written = 0;
+        Map<PatientRecord, Exception> failures = new LinkedHashMap<>();
+        for (PatientRecord record : records) {
+            try {
+                if (insert) insert(record); else update(record);
+                written++;
+            } catch (SQLException | RuntimeException e) {
+                failures.put(record, e);
+            }
+        }
+        return new BatchResult(written, System.nanoTime() - start, failures);
+    }
+
+    @Override
+    public SearchPage search(String query, String type, String cursor, int pageSize) throws SQLException {
+        SearchCursor after = SearchCursor.decode(cursor, type);
+        if (type.equals("id")) {
+            String hash = Hashing.sha256(query);
+            NavigableSet<Integer> ids = byIdHash.getOrDefault(hash, Collections.emptyNavigableSet());
+            return page(type, after == null ? ids : ids.tailSet(after.getRecordIndex(), false),
+                    r -> hash.equals(r.getPatientIdHash()), pageSize);
+        } else if (type.equals("name")) {
+            return searchByName(query, after, pageSize);
+        } else if (type.equals("dob")) {
+            return searchByDob(query, after, pageSize);
+        }
+        // Default: everything in record_index order
+        Iterable<Integer> ids = after == null ? rows.keySet() : rows.tailMap(after.getRecordIndex(), false).keySet();
+        return page(type, ids, r -> true, pageSize);
+    }
+
+    // Exact (case-insensitive) matches first, then other names containing the query, each by name then record_index
+    private SearchPage searchByName(String query, SearchCursor after, int pageSize) {
+        String q = query.toLowerCase(Locale.ROOT);
+        int afterRank = after == null ? 0 : Integer.parseInt(after.sortKey(0));
+        String afterName = after == null ? null : after.sortKey(1).toLowerCase(Locale.ROOT);
+        List<PatientRecord> results = new ArrayList<>();
+
+        boolean full = false;
+        if (afterRank == 0) {
+            NavigableSet<Integer> exact = byName.getOrDefault(q, Collections.emptyNavigableSet());
+            Iterable<Integer> ids = after == null ? exact : exact.tailSet(after.getRecordIndex(), false);
+            full = collect(ids, r -> lower(r.getPatientName()).equals(q), results, pageSize + 1);
+        }
+
+        Map<String, NavigableSet<Integer>> names = afterRank == 1 ? byName.tailMap(afterName, true) : byName;
+        for (Iterator<Map.Entry<String, NavigableSet<Integer>>> it = names.entrySet().iterator(); !full && it.hasNext(); ) {
+            Map.Entry<String, NavigableSet<Integer>> e = it.next();
+            String name = e.getKey();
+            if (name.equals(q) || !name.contains(q)) continue;
+            Iterable<Integer> ids = afterRank == 1 && name.equals(afterName)
+                    ? e.getValue().tailSet(after.getRecordIndex(), false) : e.getValue();
+            full = collect(ids, r -> lower(r.getPatientName()).equals(name), results, pageSize + 1);
+        }
+
+        int lastRank = results.size() > pageSize && lower(results.get(pageSize - 1).getPatientName()).equals(q) ? 0 : 1;
+        return toPage("name", results, pageSize, lastRank);
+    }
+
+    private SearchPage searchByDob(String query, SearchCursor after, int pageSize) {
+        LocalDate afterDob = after == null ? null : LocalDate.parse(after.sortKey(0));
+        List<LocalDate[]> ranges = new ArrayList<>();
+        DobQueryPlanner.Plan plan = DobQueryPlanner.plan(query);
+        if (plan != null) {
+            ranges.addAll(plan.ranges);
+        } else if (!byDob.isEmpty()) {
+            // Free-form fragment: walk every date, as the MySQL string match does
+            ranges.add(new LocalDate[]{byDob.firstKey(), byDob.lastKey()});
+        }
+
+        List<PatientRecord> results = new ArrayList<>();
+        for (LocalDate[] range : ranges) {
+            if (afterDob != null && range[1].isBefore(afterDob)) continue;
+            LocalDate from = afterDob != null && afterDob.isAfter(range[0]) ? afterDob : range[0];
+            for (Map.Entry<LocalDate, NavigableSet<Integer>> e : byDob.subMap(from, true, range[1], true).entrySet()) {
+                LocalDate dob = e.getKey();
+                if (plan == null && !dob.toString().contains(query)) continue;
+                Iterable<Integer> ids = dob.equals(afterDob) ? e.getValue().tailSet(after.getRecordIndex(), false) : e.getValue();
+                if (collect(ids, r -> dob.equals(toLocalDate(r.getPatientDob())), results, pageSize + 1)) {
+                    return toPage("dob", results, pageSize, 0);
+                }
+            }
+        }
+        return toPage("dob", results, pageSize, 0);
+    }
+
+    @Override
+    public SearchPage searchByTerms(List<String> termTokens, String cursor, int pageSize) throws SQLException {
+        if (termTokens.isEmpty()) return new SearchPage(new ArrayList<>(), null);
+        SearchCursor after = SearchCursor.decode(cursor, "keyword");
+
+        // Walk the rarest token's postings and check the rest
+        NavigableSet<Integer> smallest = null;
+        for (String token : termTokens) {
+            NavigableSet<Integer> ids = byTerm.getOrDefault(token, Collections.emptyNavigableSet());
+            if (smallest == null || ids.size() < smallest.size()) smallest = ids;
+        }
+        Iterable<Integer> ids = after == null ? smallest : smallest.tailSet(after.getRecordIndex(), false);
+        return page("keyword", ids, r -> termsOf.getOrDefault(r.getRecordIndex(), Set.of()).containsAll(termTokens), pageSize);
+    }
+
+    @Override
+    public PatientRecord getById(int recordIndex, Set<Part> parts) throws SQLException {
+        PatientRecord row = rows.get(recordIndex);
+        return row == null ? null : project(row, parts);
+    }
+
+    // Rows are replaced, never modified, so the array read here is a stable snapshot
+    @Override
+    public MediaBlob openMediaBlob(int recordIndex, MediaKind kind) throws SQLException {
+        byte[] data = media(recordIndex, kind);
+        if (data == null || data.length == 0) return null;
+        return new MediaBlob() {
+            @Override
+            public long length() {
+                return data.length;
+            }
+
+            @Override
+            public InputStream open(long offset, long length) throws SQLException {
+                if (offset < 0 || length < 0 || offset > data.length) {
+                    throw new SQLException("Media range out of bounds for record " + recordIndex);
+                }
+                return new ByteArrayInputStream(data, (int) offset, (int) Math.min(length, data.length - offset));
+            }
+        };
+    }
+
+    private byte[] media(int recordIndex, MediaKind kind) {
+        PatientRecord row = rows.get(recordIndex);
+        if (row == null) return null;
+        return kind == MediaKind.IMAGES ? row.getEncryptedImages() : row.getEncryptedVideos();
+    }
+
+    @Override
+    public List<PatientRecord> scanAfter(int afterRecordIndex, int limit, int mediaPrefixBytes) throws SQLException {
+        List<PatientRecord> results = scan(afterRecordIndex, limit, EnumSet.of(Part.TEXT, Part.KEYS));
+        for (PatientRecord record : results) {
+            PatientRecord row = rows.get(record.getRecordIndex());
+            if (row == null) continue;
+            record.setMediaPrefix(MediaKind.IMAGES, prefix(row.getEncryptedImages(), mediaPrefixBytes));
+            record.setMediaPrefix(MediaKind.VIDEOS, prefix(row.getEncryptedVideos(), mediaPrefixBytes));
+        }
+        return results;
+    }
+
+    private static byte[] prefix(byte[] data, int length) {
+        return data == null ? null : Arrays.copyOf(data, Math.min(length, data.length));
+    }
+
+    @Override
+    public List<PatientRecord> scanWrappedKeysAfter(int afterRecordIndex, int limit) throws SQLException {
+        return scan(afterRecordIndex, limit, EnumSet.of(Part.KEYS));
+    }
+
+    @Override
+    public int updateWrappedKeys(boolean isDoctor, List<WrappedKeyUpdate> updates) throws SQLException {
+        int written = 0;
+        synchronized (writeLock) {
+            for (WrappedKeyUpdate update : updates) {
+                PatientRecord old = rows.get(update.getRecordIndex());
+                if (old == null) continue;
+                byte[] current = isDoctor ? old.getDoctorEncryptedAesKey() : old.getNurseEncryptedAesKey();
+                if (!Arrays.equals(current, update.getExpected())) continue;
+                // Indexed columns are unchanged, so the row can be swapped in place
+                PatientRecord row = old.copy();
+                if (isDoctor) {
+                    row.setDoctorEncryptedAesKey(update.getReplacement());
+                } else {
+                    row.setNurseEncryptedAesKey(update.getReplacement());
+                }
+                rows.put(row.getRecordIndex(), row);
+                written++;
+            }
+        }
+        return written;
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    private List<PatientRecord> scan(int afterRecordIndex, int limit, Set<Part> parts) {
+        List<PatientRecord> results = new ArrayList<>();
+        for (PatientRecord row : rows.tailMap(afterRecordIndex, false).values()) {
+            if (results.size() == limit) break;
+            results.add(project(row, parts));
+        }
+        return results;
+    }
+
+    private SearchPage page(String type, Iterable<Integer> ids, Predicate<PatientRecord> matches, int pageSize) {
+        List<PatientRecord> results = new ArrayList<>();
+        collect(ids, matches, results, pageSize + 1);
+        return toPage(type, results, pageSize, 0);
+    }
+
+    // Adds matching rows (projected like a search row) until results holds limit; true once full
+    private boolean collect(Iterable<Integer> ids, Predicate<PatientRecord> matches,
+                            List<PatientRecord> results, int limit) {
+        Iterator<Integer> it = ids.iterator();
+        while (results.size() < limit && it.hasNext()) {
+            PatientRecord row = rows.get(it.next());
+            if (row != null && matches.test(row)) {
+                results.add(project(row, SEARCH_PARTS));
+            }
+        }
+        return results.size() >= limit;
+    }
+
+    // results may hold one row beyond the page; its presence means there is a next page
+    private static SearchPage toPage(String type, List<PatientRecord> results, int pageSize, int nameRank) {
+        if (results.size() <= pageSize) return new SearchPage(results, null);
+        List<PatientRecord> page = new ArrayList<>(results.subList(0, pageSize));
+        return new SearchPage(page, SearchCursor.after(type, page.get(pageSize - 1), nameRank).encode());
+    }
+
+    private static PatientRecord project(PatientRecord row, Set<Part> parts) {
+        PatientRecord r = row.copy();
+        if (!parts.contains(Part.METADATA)) {
+            r.setPatientIdHash(null);
+            r.setPatientName(null);
+            r.setPatientDob(null);
+            r.setCheckInDate(null);
+            r.setDoctorName(null);
+            r.setNurseName(null);
+        }
+        if (!parts.contains(Part.TEXT)) {
+            r.setEncryptedSymptoms(null);
+            r.setEncryptedDiagnosis(null);
+        }
+        if (!parts.contains(Part.MEDIA)) {
+            r.setEncryptedImages(null);
+            r.setEncryptedVideos(null);
+        }
+        if (!parts.contains(Part.KEYS)) {
+            r.setDoctorEncryptedAesKey(null);
+            r.setNurseEncryptedAesKey(null);
+        }
+        r.setLoadedParts(parts);
+        r.clearDirty();
+        return r;
+    }
+
+    // Index maintenance; callers hold writeLock
+
+    private void put(PatientRecord row) {
+        int id = row.getRecordIndex();
+        rows.put(id, row);
+        add(byIdHash, row.getPatientIdHash(), id);
+        add(byName, lower(row.getPatientName()), id);
+        add(byDob, toLocalDate(row.getPatientDob()), id);
+    }
+
+    // After put(row) has indexed the new values: drop only the entries whose key changed, so a
+    // lock-free reader always finds the row under its old or its new key, never under neither
+    private void dropStale(PatientRecord old, PatientRecord row) {
+        int id = row.getRecordIndex();
+        if (!Objects.equals(old.getPatientIdHash(), row.getPatientIdHash())) {
+            drop(byIdHash, old.getPatientIdHash(), id);
+        }
+        if (!lower(old.getPatientName()).equals(lower(row.getPatientName()))) {
+            drop(byName, lower(old.getPatientName()), id);
+        }
+        if (!Objects.equals(toLocalDate(old.getPatientDob()), toLocalDate(row.getPatientDob()))) {
+            drop(byDob, toLocalDate(old.getPatientDob()), id);
+        }
+    }
+
+    // Null tokens leave the stored index as is, as in the MySQL repository
+    private void writeTerms(int id, Set<String> tokens) {
+        if (tokens == null) return;
+        // Same order as put/dropStale: new tokens first, then the ones no longer present
+        Set<String> copy = new HashSet<>(tokens);
+        for (String token : copy) add(byTerm, token, id);
+        Set<String> old = termsOf.put(id, copy);
+        if (old != null) {
+            for (String token : old) {
+                if (!copy.contains(token)) drop(byTerm, token, id);
+            }
+        }
+    }
+
+    private static <K> void add(Map<K, NavigableSet<Integer>> index, K key, int id) {
+        if (key == null) return;
+        index.computeIfAbsent(key, k -> new ConcurrentSkipListSet<>()).add(id);
+    }
+
+    private static <K> void drop(Map<K, NavigableSet<Integer>> index, K key, int id) {
+        if (key == null) return;
+        index.computeIfPresent(key, (k, ids) -> {
+            ids.remove(id);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    private static String lower(String s) {
+        return s == null ? "" : s.toLowerCase(Locale.ROOT);
+    }
+
+    private static LocalDate toLocalDate(Date date) {
+        return date == null ? null : date.toLocalDate();
+    }
+}
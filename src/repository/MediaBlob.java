@@ -0,0 +1,18 @@
+package repository;
+
+import java.io.InputStream;
+import java.sql.SQLException;
+
+/**
+ * One stored version of a record's encrypted media archive, from HospitalRepository.openMediaBlob.
+ * Every read through it sees the same bytes: if the record's media is replaced meanwhile, reads
+ * fail rather than return a mix of the old and the new archive.
+ */
+public interface MediaBlob {
+
+    // Size of the archive in bytes
+    long length();
+
+    // Bytes [offset, offset + length), clipped to the end of the archive
+    InputStream open(long offset, long length) throws SQLException;
+}
@@ -1,162 +1,1112 @@
 package repository;
 
 import model.PatientRecord;
+import model.PatientRecord.Field;
+import model.PatientRecord.MediaKind;
+import model.PatientRecord.Part;
 import util.DBConnection;
 import util.Hashing;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
 
+/*
+ * Date-of-birth search relies on (see verifySchema):
+ *   CREATE INDEX idx_records_dob ON Hospital_Records (patient_dob);
+ *
+ * Blind keyword index side table:
+ *   CREATE TABLE Hospital_Record_Terms (
+ *       term_hash    CHAR(64) NOT NULL,
+ *       record_index INT      NOT NULL,
+ *       PRIMARY KEY (term_hash, record_index),
+ *       KEY idx_terms_record (record_index)
+ *   );
+ *
+ * Encrypted media is stored as fixed-size chunk rows, so a byte range is an indexed lookup of the
+ * chunks covering it (a SUBSTRING of a BLOB column makes InnoDB read the whole BLOB every time).
+ * The record row points at the current generation of each archive; a replaced archive gets a new
+ * generation and the old chunks are deleted in the same transaction:
+ *   CREATE TABLE Hospital_Media_Chunks (
+ *       record_index INT        NOT NULL,
+ *       kind         TINYINT    NOT NULL,
+ *       generation   BIGINT     NOT NULL,
+ *       seq          INT        NOT NULL,
+ *       bytes        MEDIUMBLOB NOT NULL,
+ *       PRIMARY KEY (record_index, kind, generation, seq)
+ *   );
+ *   ALTER TABLE Hospital_Records ADD COLUMN images_generation BIGINT NULL, ADD COLUMN videos_generation BIGINT NULL;
+ * Rows written before that keep their archive in encrypted_images / encrypted_videos until the
+ * envelope migrator moves it (relocateLegacyMedia); reads fall back to those columns meanwhile.
+ */
 public class MySQLHospitalRepository implements HospitalRepository {
 
+    private static final String INSERT_SQL = """
+        INSERT INTO Hospital_Records
+        (patient_id_hash, patient_name, patient_dob, check_in_date, doctor_name, nurse_name,
+         encrypted_symptoms, encrypted_diagnosis, images_generation, videos_generation,
+         doctor_encrypted_aes_key, nurse_encrypted_aes_key)
+        VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
+    """;
+
+    private static final Map<Field, String> COLUMNS = new EnumMap<>(Map.ofEntries(
+            Map.entry(Field.PATIENT_NAME, "patient_name"),
+            Map.entry(Field.PATIENT_DOB, "patient_dob"),
+            Map.entry(Field.CHECK_IN_DATE, "check_in_date"),
+            Map.entry(Field.DOCTOR_NAME, "doctor_name"),
+            Map.entry(Field.NURSE_NAME, "nurse_name"),
+            Map.entry(Field.SYMPTOMS, "encrypted_symptoms"),
+            Map.entry(Field.DIAGNOSIS, "encrypted_diagnosis"),
+            Map.entry(Field.IMAGES, "images_generation"),
+            Map.entry(Field.VIDEOS, "videos_generation"),
+            Map.entry(Field.DOCTOR_KEY, "doctor_encrypted_aes_key"),
+            Map.entry(Field.NURSE_KEY, "nurse_encrypted_aes_key")));
+
+    // UPDATE text per combination of changed columns. Only a handful of combinations occur in
+    // practice (text only, text + keys, ...), and identical text lets the driver's per-connection
+    // statement cache (cachePrepStmts) reuse the parsed statement.
+    private static final Map<Set<Field>, String> UPDATE_SQL = new ConcurrentHashMap<>();
+    // Same, additionally requiring the row's wrapped keys to still be the ones the record was read with
+    private static final Map<Set<Field>, String> GUARDED_UPDATE_SQL = new ConcurrentHashMap<>();
+    private static final String KEYS_GUARD = " AND doctor_encrypted_aes_key <=> ? AND nurse_encrypted_aes_key <=> ?";
+
+    // Size of a Hospital_Media_Chunks row. Fixed: ranges of stored archives are located by it
+    private static final int MEDIA_CHUNK_BYTES = 256 * 1024;
+    // Bytes per media read query, rounded up to whole chunks; override with -Dmedia.readWindowBytes
+    private static final int MEDIA_READ_WINDOW_BYTES = Integer.getInteger("media.readWindowBytes", 256 * 1024);
+    private static final int MEDIA_READ_WINDOW_CHUNKS = Math.max(1, (MEDIA_READ_WINDOW_BYTES + MEDIA_CHUNK_BYTES - 1) / MEDIA_CHUNK_BYTES);
+    // Chunk inserts sent per batch while writing an archive, so only this many chunks are in heap
+    private static final int MEDIA_WRITE_BATCH_CHUNKS = 16;
+
+    // Search rows never carry media; it is fetched on demand through openMediaBlob
+    static final Set<Part> SEARCH_PARTS = EnumSet.of(Part.METADATA, Part.TEXT, Part.KEYS);
+
+    private static final String SELECT_SEARCH_COLUMNS = "SELECT " + columnsFor(SEARCH_PARTS) + " FROM Hospital_Records";
+
+    // Indexes the query plans depend on: table, leading column, DDL to create it
+    private static final String[][] REQUIRED_INDEXES = {
+            {"Hospital_Records", "patient_dob", "CREATE INDEX idx_records_dob ON Hospital_Records (patient_dob)"},
+    };
+
+    // Chunked media storage (see the top of this file): table, column, DDL to create it
+    private static final String[][] REQUIRED_COLUMNS = {
+            {"Hospital_Media_Chunks", "bytes", "CREATE TABLE Hospital_Media_Chunks (record_index INT NOT NULL, kind TINYINT NOT NULL,"
+                    + " generation BIGINT NOT NULL, seq INT NOT NULL, bytes MEDIUMBLOB NOT NULL,"
+                    + " PRIMARY KEY (record_index, kind, generation, seq))"},
+            {"Hospital_Records", "images_generation", "ALTER TABLE Hospital_Records ADD COLUMN images_generation BIGINT NULL"},
+            {"Hospital_Records", "videos_generation", "ALTER TABLE Hospital_Records ADD COLUMN videos_generation BIGINT NULL"},
+    };
+
+    // Warn about (or, with -Ddb.createIndexes=true, create) any missing index. Any index whose
+    // first column matches will do, so existing differently-named indexes are accepted.
+    // Missing media storage is reported the same way, and created with -Ddb.createSchema=true.
     @Override
-    public void insert(PatientRecord record) throws SQLException {
-        String sql = """
-            INSERT INTO Hospital_Records
-            (patient_id_hash, patient_name, patient_dob, check_in_date, doctor_name, nurse_name,
-             encrypted_symptoms, encrypted_diagnosis, encrypted_images, encrypted_videos,
-             doctor_encrypted_aes_key, nurse_encrypted_aes_key)
-            VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)
-        """;
-
-        Connection conn = DBConnection.getConnection();
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+    public void verifySchema() throws SQLException {
+        try (Connection conn = DBConnection.getConnection()) {
+            DatabaseMetaData meta = conn.getMetaData();
+            for (String[] required : REQUIRED_COLUMNS) {
+                if (hasColumn(meta, conn.getCatalog(), required[0], required[1])) continue;
+
+                if (Boolean.getBoolean("db.createSchema")) {
+                    try (Statement stmt = conn.createStatement()) {
+                        stmt.execute(required[2]);
+                    }
+                    System.out.println("🛠️ Created missing media storage: " + required[2]);
+                } else {
+                    System.out.println("⚠️ No " + required[0] + "." + required[1] + "; media cannot be stored or read. Run: "
+                            + required[2]);
+                }
+            }
+            for (String[] required : REQUIRED_INDEXES) {
+                if (hasLeadingIndex(meta, conn.getCatalog(), required[0], required[1])) continue;
 
-            stmt.setString(1, Hashing.sha256(record.getPatientId()));
-            stmt.setString(2, record.getPatientName());
-            stmt.setDate(3, record.getPatientDob());
-            stmt.setTimestamp(4, record.getCheckInDate());
-            stmt.setString(5, record.getDoctorName());
-            stmt.setString(6, record.getNurseName());
-            stmt.setBytes(7, record.getEncryptedSymptoms());
-            stmt.setBytes(8, record.getEncryptedDiagnosis());
-            stmt.setBytes(9, record.getEncryptedImages());
-            stmt.setBytes(10, record.getEncryptedVideos());
-            stmt.setBytes(11, record.getDoctorEncryptedAesKey());
-            stmt.setBytes(12, record.getNurseEncryptedAesKey());
+                if (Boolean.getBoolean("db.createIndexes")) {
+                    try (Statement stmt = conn.createStatement()) {
+                        stmt.execute(required[2]);
+                    }
+                    System.out.println("🛠️ Created missing index: " + required[2]);
+                } else {
+                    System.out.println("⚠️ No index on " + required[0] + "(" + required[1] + "); searches will scan the table. Run: "
+                            + required[2]);
+                }
+            }
+        }
+    }
 
-            stmt.executeUpdate();
+    private static boolean hasColumn(DatabaseMetaData meta, String catalog, String table, String column) throws SQLException {
+        try (ResultSet rs = meta.getColumns(catalog, null, table, column)) {
+            return rs.next();
         }
     }
 
+    private static boolean hasLeadingIndex(DatabaseMetaData meta, String catalog, String table, String column) throws SQLException {
+        try (ResultSet rs = meta.getIndexInfo(catalog, null, table, false, true)) {
+            while (rs.next()) {
+                if (rs.getShort("ORDINAL_POSITION") == 1 && column.equalsIgnoreCase(rs.getString("COLUMN_NAME"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public void insert(PatientRecord record) throws SQLException {
+        // Row and its blind index entries commit together
+        try (Connection conn = DBConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            List<MediaWrite> media = new ArrayList<>();
+            try (PreparedStatement stmt = conn.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                bindInsert(stmt, record, media);
+                stmt.executeUpdate();
+                try (ResultSet keys = stmt.getGeneratedKeys()) {
+                    if (keys.next()) record.setRecordIndex(keys.getInt(1));
+                }
+            }
+            writeMedia(conn, media, false);
+            writeTerms(conn, List.of(record), true);
+            conn.commit();
+        }
+        record.clearDirty();
+    }
+
     @Override
     public void update(PatientRecord record) throws SQLException {
-        String sql = """
-            UPDATE Hospital_Records
-            SET patient_name = ?,
-                patient_dob = ?,
-                check_in_date = ?,
-                doctor_name = ?,
-                nurse_name = ?,
-                encrypted_symptoms = ?,
-                encrypted_diagnosis = ?,
-                encrypted_images = ?,
-                encrypted_videos = ?,
-                doctor_encrypted_aes_key = ?,
-                nurse_encrypted_aes_key = ?
-            WHERE record_index = ?
-        """;
-
-        Connection conn = DBConnection.getConnection();
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+        // Only the columns set since the record was read are written
+        Set<Field> fields = EnumSet.noneOf(Field.class);
+        fields.addAll(record.getDirtyFields());
+        if (fields.isEmpty() && record.getTermTokens() == null) return;
+
+        try (Connection conn = DBConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            List<MediaWrite> media = new ArrayList<>();
+            if (!fields.isEmpty()) {
+                try (PreparedStatement stmt = conn.prepareStatement(updateSql(fields, false))) {
+                    bindUpdate(stmt, record, fields, false, media);
+                    stmt.executeUpdate();
+                }
+            }
+            writeMedia(conn, media, true);
+            writeTerms(conn, List.of(record), true);
+            conn.commit();
+        }
+        record.clearDirty();
+    }
 
-            stmt.setString(1, record.getPatientName());
-            stmt.setDate(2, record.getPatientDob());
-            stmt.setTimestamp(3, record.getCheckInDate());
-            stmt.setString(4, record.getDoctorName());
-            stmt.setString(5, record.getNurseName());
-            stmt.setBytes(6, record.getEncryptedSymptoms());
-            stmt.setBytes(7, record.getEncryptedDiagnosis());
-            stmt.setBytes(8, record.getEncryptedImages());
-            stmt.setBytes(9, record.getEncryptedVideos());
-            stmt.setBytes(10, record.getDoctorEncryptedAesKey());
-            stmt.setBytes(11, record.getNurseEncryptedAesKey());
-            stmt.setInt(12, record.getRecordIndex());
+    @Override
+    public boolean updateIfKeysUnchanged(PatientRecord record) throws SQLException {
+        Set<Field> fields = EnumSet.noneOf(Field.class);
+        fields.addAll(record.getDirtyFields());
+        if (fields.contains(Field.DOCTOR_KEY) || fields.contains(Field.NURSE_KEY)) {
+            throw new IllegalArgumentException("Wrapped keys are the guard and cannot be changed by a guarded update");
+        }
 
-            stmt.executeUpdate();
+        try (Connection conn = DBConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            // Matched (not changed) rows are counted, so a rewrite with identical bytes still reports 1
+            String sql = fields.isEmpty()
+                    ? "SELECT record_index FROM Hospital_Records WHERE record_index = ?" + KEYS_GUARD + " FOR UPDATE"
+                    : updateSql(fields, true);
+            List<MediaWrite> media = new ArrayList<>();
+            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+                bindUpdate(stmt, record, fields, true, media);
+                boolean matched;
+                if (fields.isEmpty()) {
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        matched = rs.next();
+                    }
+                } else {
+                    matched = stmt.executeUpdate() > 0;
+                }
+                if (!matched) {
+                    conn.rollback();
+                    return false;
+                }
+            }
+            writeMedia(conn, media, true);
+            writeTerms(conn, List.of(record), true);
+            conn.commit();
         }
+        record.clearDirty();
+        return true;
+    }
+
+    @Override
+    public BatchResult insertAll(List<PatientRecord> records, int batchSize) throws SQLException {
+        return writeAll(records, batchSize, true);
     }
 
     @Override
-    public List<PatientRecord> search(String query, String type) throws SQLException {
-        String sql = "";
+    public BatchResult updateAll(List<PatientRecord> records, int batchSize) throws SQLException {
+        return writeAll(records, batchSize, false);
+    }
+
+    @Override
+    public BatchResult updateAllIfUnchanged(List<PatientRecord> records, List<PatientRecord> expected, int batchSize) throws SQLException {
+        if (records.size() != expected.size()) throw new IllegalArgumentException("expected must pair up with records");
+        Map<Integer, PatientRecord> expectedById = new HashMap<>();
+        for (int i = 0; i < records.size(); i++) {
+            expectedById.put(records.get(i).getRecordIndex(), expected.get(i));
+        }
+        return writeAll(records, batchSize, false, expectedById);
+    }
+
+    private BatchResult writeAll(List<PatientRecord> records, int batchSize, boolean insert) throws SQLException {
+        return writeAll(records, batchSize, insert, null);
+    }
+
+    // One transaction per chunk of batchSize rows, sent as a single multi-row statement
+    // (rewriteBatchedStatements). A failed chunk is rolled back and retried row by row,
+    // so every failure maps back to the record that caused it. With expected, the chunk's rows
+    // are locked and compared first, and only the unchanged ones are written.
+    private BatchResult writeAll(List<PatientRecord> records, int batchSize, boolean insert,
+                                 Map<Integer, PatientRecord> expected) throws SQLException {
+        if (batchSize <= 0) throw new IllegalArgumentException("batchSize must be positive");
+
+        long start = System.nanoTime();
+        int written = 0;
+        Map<PatientRecord, Exception> failures = new LinkedHashMap<>();
+        List<PatientRecord> skipped = new ArrayList<>();
+
+        try (Connection conn = DBConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            for (int from = 0; from < records.size(); from += batchSize) {
+                List<PatientRecord> chunk = records.subList(from, Math.min(from + batchSize, records.size()));
+                List<PatientRecord> changed = new ArrayList<>();
+                try {
+                    List<PatientRecord> rows = expected == null ? chunk : lockUnchanged(conn, chunk, expected, changed);
+                    writeChunk(conn, rows, insert);
+                    conn.commit();
+                    rows.forEach(PatientRecord::clearDirty);
+                    written += rows.size();
+                    skipped.addAll(changed);
+                } catch (SQLException e) {
+                    conn.rollback();
+                    for (PatientRecord record : chunk) {
+                        changed.clear();
+                        try {
+                            List<PatientRecord> rows = expected == null ? List.of(record) : lockUnchanged(conn, List.of(record), expected, changed);
+                            writeChunk(conn, rows, insert);
+                            conn.commit();
+                            record.clearDirty();
+                            written += rows.size();
+                            skipped.addAll(changed);
+                        } catch (SQLException single) {
+                            conn.rollback();
+                            failures.put(record, single);
+                        }
+                    }
+                }
+            }
+        }
+        return new BatchResult(written, System.nanoTime() - start, failures, skipped);
+    }
+
+    // Locks the chunk's rows (FOR UPDATE, in the caller's transaction) and returns those still holding
+    // the expected wrapped keys and, for each text column being rewritten, the expected ciphertext.
+    // The rest are added to changed.
+    private List<PatientRecord> lockUnchanged(Connection conn, List<PatientRecord> chunk,
+                                              Map<Integer, PatientRecord> expected, List<PatientRecord> changed) throws SQLException {
+        Set<Part> parts = EnumSet.of(Part.TEXT, Part.KEYS);
+        StringJoiner sql = new StringJoiner(", ",
+                "SELECT " + columnsFor(parts) + " FROM Hospital_Records WHERE record_index IN (", ") FOR UPDATE");
+        for (int i = 0; i < chunk.size(); i++) sql.add("?");
+
+        Map<Integer, PatientRecord> stored = new HashMap<>();
+        try (PreparedStatement stmt = conn.prepareStatement(sql.toString())) {
+            for (int i = 0; i < chunk.size(); i++) stmt.setInt(i + 1, chunk.get(i).getRecordIndex());
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    PatientRecord row = mapResultSetToRecord(rs, parts);
+                    stored.put(row.getRecordIndex(), row);
+                }
+            }
+        }
+
+        List<PatientRecord> unchanged = new ArrayList<>(chunk.size());
+        for (PatientRecord record : chunk) {
+            if (unchanged(record, expected.get(record.getRecordIndex()), stored.get(record.getRecordIndex()))) {
+                unchanged.add(record);
+            } else {
+                changed.add(record);
+            }
+        }
+        return unchanged;
+    }
+
+    private static boolean unchanged(PatientRecord record, PatientRecord expected, PatientRecord stored) {
+        if (expected == null || stored == null) return false;
+        if (!Arrays.equals(stored.getDoctorEncryptedAesKey(), expected.getDoctorEncryptedAesKey())
+                || !Arrays.equals(stored.getNurseEncryptedAesKey(), expected.getNurseEncryptedAesKey())) {
+            return false;
+        }
+        // Media only ever changes together with the data key, so the key check covers it
+        Set<Field> dirty = record.getDirtyFields();
+        return (!dirty.contains(Field.SYMPTOMS) || Arrays.equals(stored.getEncryptedSymptoms(), expected.getEncryptedSymptoms()))
+                && (!dirty.contains(Field.DIAGNOSIS) || Arrays.equals(stored.getEncryptedDiagnosis(), expected.getEncryptedDiagnosis()));
+    }
+
+    private void writeChunk(Connection conn, List<PatientRecord> chunk, boolean insert) throws SQLException {
+        List<MediaWrite> media = new ArrayList<>();
+        if (insert) {
+            try (PreparedStatement stmt = conn.prepareStatement(INSERT_SQL, Statement.RETURN_GENERATED_KEYS)) {
+                for (PatientRecord record : chunk) {
+                    bindInsert(stmt, record, media);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                // Generated keys come back in batch order
+                try (ResultSet keys = stmt.getGeneratedKeys()) {
+                    for (PatientRecord record : chunk) {
+                        if (!keys.next()) break;
+                        record.setRecordIndex(keys.getInt(1));
+                    }
+                }
+            }
+        } else {
+            // One batch per distinct set of changed columns
+            Map<Set<Field>, List<PatientRecord>> groups = new LinkedHashMap<>();
+            for (PatientRecord record : chunk) {
+                if (!record.isDirty()) continue;
+                groups.computeIfAbsent(EnumSet.copyOf(record.getDirtyFields()), k -> new ArrayList<>()).add(record);
+            }
+            for (Map.Entry<Set<Field>, List<PatientRecord>> group : groups.entrySet()) {
+                try (PreparedStatement stmt = conn.prepareStatement(updateSql(group.getKey(), false))) {
+                    for (PatientRecord record : group.getValue()) {
+                        bindUpdate(stmt, record, group.getKey(), false, media);
+                        stmt.addBatch();
+                    }
+                    stmt.executeBatch();
+                }
+            }
+        }
+        writeMedia(conn, media, !insert);
+        writeTerms(conn, chunk, !insert);
+    }
+
+    private void bindInsert(PreparedStatement stmt, PatientRecord record, List<MediaWrite> media) throws SQLException {
+        stmt.setString(1, Hashing.sha256(record.getPatientId()));
+        stmt.setString(2, record.getPatientName());
+        stmt.setDate(3, record.getPatientDob());
+        stmt.setTimestamp(4, record.getCheckInDate());
+        stmt.setString(5, record.getDoctorName());
+        stmt.setString(6, record.getNurseName());
+        stmt.setBytes(7, record.getEncryptedSymptoms());
+        stmt.setBytes(8, record.getEncryptedDiagnosis());
+        bindMedia(stmt, 9, record, MediaKind.IMAGES, media);
+        bindMedia(stmt, 10, record, MediaKind.VIDEOS, media);
+        stmt.setBytes(11, record.getDoctorEncryptedAesKey());
+        stmt.setBytes(12, record.getNurseEncryptedAesKey());
+    }
+
+    // The archive itself goes to Hospital_Media_Chunks under a fresh generation, which is what the
+    // record column is set to; writeMedia stores the chunks once the statement has run
+    private static void bindMedia(PreparedStatement stmt, int i, PatientRecord record, MediaKind kind,
+                                  List<MediaWrite> media) throws SQLException {
+        Long generation = hasMedia(record, kind) ? ThreadLocalRandom.current().nextLong() : null;
+        media.add(new MediaWrite(record, kind, generation));
+        if (generation == null) {
+            stmt.setNull(i, Types.BIGINT);
+        } else {
+            stmt.setLong(i, generation);
+        }
+    }
+
+    private static boolean hasMedia(PatientRecord record, MediaKind kind) {
+        if (record.getEncryptedMediaFile(kind) != null) return true;
+        byte[] data = kind == MediaKind.IMAGES ? record.getEncryptedImages() : record.getEncryptedVideos();
+        return data != null && data.length > 0;
+    }
+
+    // One archive to store as chunk rows of the given generation (null: the record has none now)
+    private static final class MediaWrite {
+        final PatientRecord record;
+        final MediaKind kind;
+        final Long generation;
+
+        MediaWrite(PatientRecord record, MediaKind kind, Long generation) {
+            this.record = record;
+            this.kind = kind;
+            this.generation = generation;
+        }
+    }
+
+    // Chunk rows for each bound archive, read from the spooled file or the byte[] a fixed-size piece
+    // at a time. With replace, the record's other generations of that kind are deleted, so a reader
+    // still pinned to one fails on its next window instead of mixing two archives.
+    private static void writeMedia(Connection conn, List<MediaWrite> media, boolean replace) throws SQLException {
+        if (media.isEmpty()) return;
+        try (PreparedStatement insert = conn.prepareStatement(
+                "INSERT INTO Hospital_Media_Chunks (record_index, kind, generation, seq, bytes) VALUES (?, ?, ?, ?, ?)")) {
+            for (MediaWrite write : media) {
+                if (write.generation == null) continue;
+                try (InputStream in = mediaSource(write.record, write.kind)) {
+                    int seq = 0;
+                    int batched = 0;
+                    byte[] chunk;
+                    while ((chunk = in.readNBytes(MEDIA_CHUNK_BYTES)).length > 0) {
+                        insert.setInt(1, write.record.getRecordIndex());
+                        insert.setInt(2, kindCode(write.kind));
+                        insert.setLong(3, write.generation);
+                        insert.setInt(4, seq++);
+                        insert.setBytes(5, chunk);
+                        insert.addBatch();
+                        if (++batched == MEDIA_WRITE_BATCH_CHUNKS) {
+                            insert.executeBatch();
+                            batched = 0;
+                        }
+                    }
+                    if (batched > 0) insert.executeBatch();
+                } catch (IOException e) {
+                    throw new SQLException("Cannot read media of record " + write.record.getRecordIndex(), e);
+                }
+            }
+        }
+        if (!replace) return;
+        try (PreparedStatement delete = conn.prepareStatement(
+                "DELETE FROM Hospital_Media_Chunks WHERE record_index = ? AND kind = ? AND NOT (generation <=> ?)")) {
+            for (MediaWrite write : media) {
+                delete.setInt(1, write.record.getRecordIndex());
+                delete.setInt(2, kindCode(write.kind));
+                if (write.generation == null) {
+                    delete.setNull(3, Types.BIGINT);
+                } else {
+                    delete.setLong(3, write.generation);
+                }
+                delete.addBatch();
+            }
+            delete.executeBatch();
+        }
+    }
+
+    private static InputStream mediaSource(PatientRecord record, MediaKind kind) throws IOException {
+        Path file = record.getEncryptedMediaFile(kind);
+        if (file != null) return new BufferedInputStream(Files.newInputStream(file));
+        return new ByteArrayInputStream(kind == MediaKind.IMAGES ? record.getEncryptedImages() : record.getEncryptedVideos());
+    }
+
+    private static String updateSql(Set<Field> fields, boolean guarded) {
+        return (guarded ? GUARDED_UPDATE_SQL : UPDATE_SQL).computeIfAbsent(fields, f -> {
+            StringJoiner set = new StringJoiner(", ", "UPDATE Hospital_Records SET ",
+                    " WHERE record_index = ?" + (guarded ? KEYS_GUARD : ""));
+            for (Field field : f) {
+                set.add(COLUMNS.get(field) + " = ?");
+                // The archive now lives in chunk rows; a copy left in the old column would be read instead
+                if (field == Field.IMAGES || field == Field.VIDEOS) {
+                    set.add(mediaColumn(field == Field.IMAGES ? MediaKind.IMAGES : MediaKind.VIDEOS) + " = NULL");
+                }
+            }
+            return set.toString();
+        });
+    }
+
+    // Parameters in Field order, matching updateSql
+    private void bindUpdate(PreparedStatement stmt, PatientRecord record, Set<Field> fields, boolean guarded,
+                            List<MediaWrite> media) throws SQLException {
+        int i = 1;
+        for (Field field : fields) {
+            switch (field) {
+                case PATIENT_NAME -> stmt.setString(i, record.getPatientName());
+                case PATIENT_DOB -> stmt.setDate(i, record.getPatientDob());
+                case CHECK_IN_DATE -> stmt.setTimestamp(i, record.getCheckInDate());
+                case DOCTOR_NAME -> stmt.setString(i, record.getDoctorName());
+                case NURSE_NAME -> stmt.setString(i, record.getNurseName());
+                case SYMPTOMS -> stmt.setBytes(i, record.getEncryptedSymptoms());
+                case DIAGNOSIS -> stmt.setBytes(i, record.getEncryptedDiagnosis());
+                case IMAGES -> bindMedia(stmt, i, record, MediaKind.IMAGES, media);
+                case VIDEOS -> bindMedia(stmt, i, record, MediaKind.VIDEOS, media);
+                case DOCTOR_KEY -> stmt.setBytes(i, record.getDoctorEncryptedAesKey());
+                case NURSE_KEY -> stmt.setBytes(i, record.getNurseEncryptedAesKey());
+            }
+            i++;
+        }
+        stmt.setInt(i, record.getRecordIndex());
+        if (guarded) {
+            stmt.setBytes(i + 1, record.getDoctorEncryptedAesKey());
+            stmt.setBytes(i + 2, record.getNurseEncryptedAesKey());
+        }
+    }
+
+    // Write blind index entries for records whose tokens the caller recomputed (replace = drop old ones first)
+    private void writeTerms(Connection conn, List<PatientRecord> records, boolean replace) throws SQLException {
+        List<PatientRecord> indexed = new ArrayList<>();
+        for (PatientRecord record : records) {
+            if (record.getTermTokens() != null) indexed.add(record);
+        }
+        if (indexed.isEmpty()) return;
+
+        if (replace) {
+            try (PreparedStatement delete = conn.prepareStatement("DELETE FROM Hospital_Record_Terms WHERE record_index = ?")) {
+                for (PatientRecord record : indexed) {
+                    delete.setInt(1, record.getRecordIndex());
+                    delete.addBatch();
+                }
+                delete.executeBatch();
+            }
+        }
+
+        try (PreparedStatement insert = conn.prepareStatement("INSERT INTO Hospital_Record_Terms (term_hash, record_index) VALUES (?, ?)")) {
+            boolean any = false;
+            for (PatientRecord record : indexed) {
+                for (String token : record.getTermTokens()) {
+                    insert.setString(1, token);
+                    insert.setInt(2, record.getRecordIndex());
+                    insert.addBatch();
+                    any = true;
+                }
+            }
+            if (any) insert.executeBatch();
+        }
+    }
+
+    // Keyset pagination: each page is "rows after the cursor in sort order, LIMIT pageSize + 1", so a page
+    // costs the same however deep into the results it is. The extra row only tells us whether to hand
+    // out a next cursor.
+    @Override
+    public SearchPage search(String query, String type, String cursor, int pageSize) throws SQLException {
+        SearchCursor after = SearchCursor.decode(cursor, type);
+        List<Object> params = new ArrayList<>();
+        String sql;
         if (type.equals("id")) {
             // ID is hashed, so we must search for the exact hash
-            sql = "SELECT record_index, patient_id_hash, patient_name, patient_dob, check_in_date, doctor_name, nurse_name, encrypted_symptoms, encrypted_diagnosis, doctor_encrypted_aes_key, nurse_encrypted_aes_key FROM Hospital_Records WHERE patient_id_hash = ?";
+            sql = SELECT_SEARCH_COLUMNS + " WHERE patient_id_hash = ?";
+            params.add(Hashing.sha256(query));
+            if (after != null) {
+                sql += " AND record_index > ?";
+                params.add(after.getRecordIndex());
+            }
+            sql += " ORDER BY record_index";
         } else if (type.equals("name")) {
             // Use LIKE for partial matches, sort exact matches to the top
-            sql = "SELECT record_index, patient_id_hash, patient_name, patient_dob, check_in_date, doctor_name, nurse_name, encrypted_symptoms, encrypted_diagnosis, doctor_encrypted_aes_key, nurse_encrypted_aes_key FROM Hospital_Records WHERE patient_name LIKE ? ORDER BY CASE WHEN patient_name = ? THEN 0 ELSE 1 END, patient_name";
+            sql = SELECT_SEARCH_COLUMNS.replace(" FROM", ", CASE WHEN patient_name = ? THEN 0 ELSE 1 END AS name_rank FROM")
+                    + " WHERE patient_name LIKE ?";
+            params.add(query);
+            params.add("%" + query + "%");
+            if (after != null) {
+                sql += " AND (CASE WHEN patient_name = ? THEN 0 ELSE 1 END, patient_name, record_index) > (?, ?, ?)";
+                params.add(query);
+                params.add(Integer.parseInt(after.sortKey(0)));
+                params.add(after.sortKey(1));
+                params.add(after.getRecordIndex());
+            }
+            sql += " ORDER BY name_rank, patient_name, record_index";
         } else if (type.equals("dob")) {
-            // Cast DATE to CHAR to allow partial search (e.g. "2000" finds all dates in 2000)
-            sql = "SELECT record_index, patient_id_hash, patient_name, patient_dob, check_in_date, doctor_name, nurse_name, encrypted_symptoms, encrypted_diagnosis, doctor_encrypted_aes_key, nurse_encrypted_aes_key FROM Hospital_Records WHERE CAST(patient_dob AS CHAR) LIKE ?";
+            DobQueryPlanner.Plan plan = DobQueryPlanner.plan(query);
+            if (plan != null) {
+                // Year / year-month / date / month-day become range or point lookups on idx_records_dob
+                sql = SELECT_SEARCH_COLUMNS + " WHERE " + plan.predicate;
+                params.addAll(plan.params);
+            } else {
+                // Free-form fragments still work, but as a string match over every row
+                sql = SELECT_SEARCH_COLUMNS + " WHERE CAST(patient_dob AS CHAR) LIKE ?";
+                params.add("%" + query + "%");
+            }
+            if (after != null) {
+                sql += " AND (patient_dob, record_index) > (?, ?)";
+                params.add(Date.valueOf(after.sortKey(0)));
+                params.add(after.getRecordIndex());
+            }
+            sql += " ORDER BY patient_dob, record_index";
         } else {
             // Default: Search all if query is empty or type is unknown (fallback)
-             sql = "SELECT record_index, patient_id_hash, patient_name, patient_dob, check_in_date, doctor_name, nurse_name, encrypted_symptoms, encrypted_diagnosis, doctor_encrypted_aes_key, nurse_encrypted_aes_key FROM Hospital_Records LIMIT 50";
+            sql = SELECT_SEARCH_COLUMNS;
+            if (after != null) {
+                sql += " WHERE record_index > ?";
+                params.add(after.getRecordIndex());
+            }
+            sql += " ORDER BY record_index";
         }
+        sql += " LIMIT ?";
+        params.add(pageSize + 1);
 
         List<PatientRecord> results = new ArrayList<>();
-        Connection conn = DBConnection.getConnection();
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+        String nextCursor = null;
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
 
-            if (type.equals("id")) {
-                stmt.setString(1, Hashing.sha256(query));
-            } else if (type.equals("name")) {
-                stmt.setString(1, "%" + query + "%");
-                stmt.setString(2, query);
-            } else if (type.equals("dob")) {
-                stmt.setString(1, "%" + query + "%");
+            for (int i = 0; i < params.size(); i++) {
+                stmt.setObject(i + 1, params.get(i));
             }
-            // No params for default case
 
             ResultSet rs = stmt.executeQuery();
+            int lastRank = 0;
             while (rs.next()) {
-                results.add(mapResultSetToRecord(rs));
+                if (results.size() == pageSize) {
+                    nextCursor = SearchCursor.after(type, results.get(pageSize - 1), lastRank).encode();
+                    break;
+                }
+                results.add(mapResultSetToRecord(rs, SEARCH_PARTS));
+                // Take the rank from MySQL so the cursor agrees with its collation
+                if (type.equals("name")) lastRank = rs.getInt("name_rank");
             }
         }
-        return results;
+        return new SearchPage(results, nextCursor);
     }
 
     @Override
-    public PatientRecord getById(int recordIndex) throws SQLException {
-        String sql = "SELECT * FROM Hospital_Records WHERE record_index = ?";
-        Connection conn = DBConnection.getConnection();
-        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+    public SearchPage searchByTerms(List<String> termTokens, String cursor, int pageSize) throws SQLException {
+        List<PatientRecord> results = new ArrayList<>();
+        if (termTokens.isEmpty()) return new SearchPage(results, null);
+        SearchCursor after = SearchCursor.decode(cursor, "keyword");
+
+        // Index lookup only: records holding every token, then fetch just those rows
+        String placeholders = String.join(", ", java.util.Collections.nCopies(termTokens.size(), "?"));
+        String sql = SELECT_SEARCH_COLUMNS + " WHERE record_index IN ("
+                + "SELECT record_index FROM Hospital_Record_Terms WHERE term_hash IN (" + placeholders + ") "
+                + (after != null ? "AND record_index > ? " : "")
+                + "GROUP BY record_index HAVING COUNT(*) = ?) ORDER BY record_index LIMIT ?";
+
+        String nextCursor = null;
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            int i = 1;
+            for (String token : termTokens) {
+                stmt.setString(i++, token);
+            }
+            if (after != null) stmt.setInt(i++, after.getRecordIndex());
+            stmt.setInt(i++, termTokens.size());
+            stmt.setInt(i, pageSize + 1);
+
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                if (results.size() == pageSize) {
+                    nextCursor = SearchCursor.after("keyword", results.get(pageSize - 1), 0).encode();
+                    break;
+                }
+                results.add(mapResultSetToRecord(rs, SEARCH_PARTS));
+            }
+        }
+        return new SearchPage(results, nextCursor);
+    }
+
+    @Override
+    public PatientRecord getById(int recordIndex, Set<Part> parts) throws SQLException {
+        boolean media = parts.contains(Part.MEDIA);
+        String sql = "SELECT " + columnsFor(parts) + (media ? ", images_generation, videos_generation" : "")
+                + " FROM Hospital_Records WHERE record_index = ?";
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
             
             stmt.setInt(1, recordIndex);
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
-                return mapResultSetToRecord(rs);
+                PatientRecord record = mapResultSetToRecord(rs, parts);
+                if (media) {
+                    long images = rs.getLong("images_generation");
+                    if (!rs.wasNull()) record.setEncryptedImages(readChunks(conn, recordIndex, MediaKind.IMAGES, images));
+                    long videos = rs.getLong("videos_generation");
+                    if (!rs.wasNull()) record.setEncryptedVideos(readChunks(conn, recordIndex, MediaKind.VIDEOS, videos));
+                }
+                return record;
             }
         }
         return null;
     }
 
-    private PatientRecord mapResultSetToRecord(ResultSet rs) throws SQLException {
+    // A whole archive in one statement, so it comes from one snapshot of the chunk rows
+    private static byte[] readChunks(Connection conn, int recordIndex, MediaKind kind, long generation) throws SQLException {
+        String sql = "SELECT bytes FROM Hospital_Media_Chunks WHERE record_index = ? AND kind = ? AND generation = ? ORDER BY seq";
+        try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, recordIndex);
+            stmt.setInt(2, kindCode(kind));
+            stmt.setLong(3, generation);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) out.writeBytes(rs.getBytes(1));
+            }
+            if (out.size() == 0) throw replaced(recordIndex);
+            return out.toByteArray();
+        }
+    }
+
+    // Pins the archive the row points at now: its chunk generation, or for a row not yet moved to
+    // chunks, the old column (read only while the row still has no generation). Length comes from
+    // the last chunk, so nothing but that row and one index lookup is read here.
+    @Override
+    public MediaBlob openMediaBlob(int recordIndex, MediaKind kind) throws SQLException {
+        String generationColumn = generationColumn(kind);
+        String sql = "SELECT r." + generationColumn + ", OCTET_LENGTH(r." + mediaColumn(kind) + "),"
+                + " (SELECT c.seq * " + MEDIA_CHUNK_BYTES + " + LENGTH(c.bytes) FROM Hospital_Media_Chunks c"
+                + " WHERE c.record_index = r.record_index AND c.kind = ? AND c.generation = r." + generationColumn
+                + " ORDER BY c.seq DESC LIMIT 1)"
+                + " FROM Hospital_Records r WHERE r.record_index = ?";
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, kindCode(kind));
+            stmt.setInt(2, recordIndex);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (!rs.next()) return null;
+                long generation = rs.getLong(1);
+                if (!rs.wasNull()) {
+                    long length = rs.getLong(3);
+                    if (rs.wasNull()) throw replaced(recordIndex);
+                    return new StoredMedia(recordIndex, length, (offset, size) -> chunkWindow(recordIndex, kind, generation, offset, size));
+                }
+                long length = rs.getLong(2);
+                if (length == 0) return null;
+                return new StoredMedia(recordIndex, length, (offset, size) -> columnWindow(recordIndex, kind, offset, size));
+            }
+        }
+    }
+
+    // Bytes [offset, offset + size) of the archive; size never crosses the end of a chunk window
+    private interface WindowReader {
+        byte[] read(long offset, int size) throws SQLException;
+    }
+
+    private static final class StoredMedia implements MediaBlob {
+        private final int recordIndex;
+        private final long length;
+        private final WindowReader reader;
+
+        StoredMedia(int recordIndex, long length, WindowReader reader) {
+            this.recordIndex = recordIndex;
+            this.length = length;
+            this.reader = reader;
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public InputStream open(long offset, long size) throws SQLException {
+            if (offset < 0 || size < 0 || offset > length) {
+                throw new SQLException("Media range out of bounds for record " + recordIndex);
+            }
+            WindowedMediaStream in = new WindowedMediaStream(recordIndex, reader, offset, offset + Math.min(size, length - offset));
+            // First window up front, so a replaced archive is reported here rather than mid-stream
+            in.fill();
+            return in;
+        }
+    }
+
+    // The chunks covering one window, all of the pinned generation. A missing chunk means the
+    // archive was replaced (and its chunks deleted) since it was pinned.
+    private static byte[] chunkWindow(int recordIndex, MediaKind kind, long generation, long offset, int size) throws SQLException {
+        int firstSeq = (int) (offset / MEDIA_CHUNK_BYTES);
+        int lastSeq = (int) ((offset + size - 1) / MEDIA_CHUNK_BYTES);
+        String sql = "SELECT seq, bytes FROM Hospital_Media_Chunks"
+                + " WHERE record_index = ? AND kind = ? AND generation = ? AND seq BETWEEN ? AND ? ORDER BY seq";
+        byte[] window = new byte[size];
+        int filled = 0;
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setInt(1, recordIndex);
+            stmt.setInt(2, kindCode(kind));
+            stmt.setLong(3, generation);
+            stmt.setInt(4, firstSeq);
+            stmt.setInt(5, lastSeq);
+            try (ResultSet rs = stmt.executeQuery()) {
+                for (int seq = firstSeq; seq <= lastSeq; seq++) {
+                    if (!rs.next() || rs.getInt(1) != seq) throw replaced(recordIndex);
+                    byte[] chunk = rs.getBytes(2);
+                    int from = seq == firstSeq ? (int) (offset - (long) seq * MEDIA_CHUNK_BYTES) : 0;
+                    int n = Math.min(chunk.length - from, size - filled);
+                    if (n <= 0) throw replaced(recordIndex);
+                    System.arraycopy(chunk, from, window, filled, n);
+                    filled += n;
+                }
+            }
+        }
+        if (filled < size) throw replaced(recordIndex);
+        return window;
+    }
+
+    // SUBSTRING window of a row still on the old layout. Any write or relocation sets the row's
+    // generation, after which this matches nothing, so it cannot splice two archives either.
+    private static byte[] columnWindow(int recordIndex, MediaKind kind, long offset, int size) throws SQLException {
+        String sql = "SELECT SUBSTRING(" + mediaColumn(kind) + ", ?, ?) FROM Hospital_Records"
+                + " WHERE record_index = ? AND " + generationColumn(kind) + " IS NULL";
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            stmt.setLong(1, offset + 1);
+            stmt.setInt(2, size);
+            stmt.setInt(3, recordIndex);
+            try (ResultSet rs = stmt.executeQuery()) {
+                byte[] window = rs.next() ? rs.getBytes(1) : null;
+                if (window == null || window.length != size) throw replaced(recordIndex);
+                return window;
+            }
+        }
+    }
+
+    private static SQLException replaced(int recordIndex) {
+        return new SQLException("Media of record " + recordIndex + " was replaced while it was being read");
+    }
+
+    // Reads the range one window at a time. Each window is one short query on a pooled connection
+    // that is returned before the bytes are handed on, so a slow client never pins a connection and
+    // at most one window is in heap.
+    private static final class WindowedMediaStream extends InputStream {
+        private final int recordIndex;
+        private final WindowReader reader;
+        private long next;          // offset of the first byte not yet fetched
+        private final long end;     // exclusive
+        private byte[] window = new byte[0];
+        private int pos;
+
+        WindowedMediaStream(int recordIndex, WindowReader reader, long offset, long end) {
+            this.recordIndex = recordIndex;
+            this.reader = reader;
+            this.next = offset;
+            this.end = end;
+        }
+
+        // Fetch the next window, ending on a chunk boundary; false at the end of the range
+        boolean fill() throws SQLException {
+            if (next >= end) return false;
+            long windowBytes = (long) MEDIA_READ_WINDOW_CHUNKS * MEDIA_CHUNK_BYTES;
+            int size = (int) Math.min(windowBytes - next % MEDIA_CHUNK_BYTES, end - next);
+            window = reader.read(next, size);
+            pos = 0;
+            next += window.length;
+            return true;
+        }
+
+        // True once there is an unread byte in window
+        private boolean ensureData() throws IOException {
+            if (pos < window.length) return true;
+            try {
+                return fill();
+            } catch (SQLException e) {
+                throw new IOException("Reading media of record " + recordIndex + " failed", e);
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            return ensureData() ? window[pos++] & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!ensureData()) return -1;
+            int n = Math.min(len, window.length - pos);
+            System.arraycopy(window, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+    }
+
+    // Move each listed row whose archive is still in the old column into chunk rows, one row per
+    // transaction. The bytes are unchanged, so the row's ciphertext and wrapped keys stay valid.
+    @Override
+    public int relocateLegacyMedia(List<Integer> recordIndexes) throws SQLException {
+        if (recordIndexes.isEmpty()) return 0;
+        StringJoiner in = new StringJoiner(", ", "(", ")");
+        for (int i = 0; i < recordIndexes.size(); i++) in.add("?");
+        String sql = "SELECT record_index, images_generation IS NULL AND encrypted_images IS NOT NULL,"
+                + " videos_generation IS NULL AND encrypted_videos IS NOT NULL"
+                + " FROM Hospital_Records WHERE record_index IN " + in;
+
+        Map<Integer, List<MediaKind>> legacy = new LinkedHashMap<>();
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+            for (int i = 0; i < recordIndexes.size(); i++) stmt.setInt(i + 1, recordIndexes.get(i));
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    List<MediaKind> kinds = new ArrayList<>(2);
+                    if (rs.getBoolean(2)) kinds.add(MediaKind.IMAGES);
+                    if (rs.getBoolean(3)) kinds.add(MediaKind.VIDEOS);
+                    if (!kinds.isEmpty()) legacy.put(rs.getInt(1), kinds);
+                }
+            }
+        }
+
+        int moved = 0;
+        for (Map.Entry<Integer, List<MediaKind>> entry : legacy.entrySet()) {
+            for (MediaKind kind : entry.getValue()) {
+                if (relocate(entry.getKey(), kind)) moved++;
+            }
+        }
+        return moved;
+    }
+
+    private boolean relocate(int recordIndex, MediaKind kind) throws SQLException {
+        String column = mediaColumn(kind);
+        String generationColumn = generationColumn(kind);
+        try (Connection conn = DBConnection.getConnection()) {
+            conn.setAutoCommit(false);
+            try {
+                byte[] data;
+                try (PreparedStatement stmt = conn.prepareStatement("SELECT " + column + " FROM Hospital_Records"
+                        + " WHERE record_index = ? AND " + generationColumn + " IS NULL FOR UPDATE")) {
+                    stmt.setInt(1, recordIndex);
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        // Written (and so already moved) since the candidates were read
+                        if (!rs.next() || (data = rs.getBytes(1)) == null) {
+                            conn.rollback();
+                            return false;
+                        }
+                    }
+                }
+
+                PatientRecord record = new PatientRecord();
+                record.setRecordIndex(recordIndex);
+                if (kind == MediaKind.IMAGES) record.setEncryptedImages(data); else record.setEncryptedVideos(data);
+                List<MediaWrite> media = new ArrayList<>(1);
+                try (PreparedStatement stmt = conn.prepareStatement("UPDATE Hospital_Records SET " + generationColumn
+                        + " = ?, " + column + " = NULL WHERE record_index = ?")) {
+                    bindMedia(stmt, 1, record, kind, media);
+                    stmt.setInt(2, recordIndex);
+                    stmt.executeUpdate();
+                }
+                writeMedia(conn, media, true);
+                conn.commit();
+                return true;
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static String mediaColumn(MediaKind kind) {
+        return kind == MediaKind.IMAGES ? "encrypted_images" : "encrypted_videos";
+    }
+
+    private static String generationColumn(MediaKind kind) {
+        return kind == MediaKind.IMAGES ? "images_generation" : "videos_generation";
+    }
+
+    // Hospital_Media_Chunks.kind
+    private static int kindCode(MediaKind kind) {
+        return kind == MediaKind.IMAGES ? 0 : 1;
+    }
+
+    @Override
+    public List<PatientRecord> scanAfter(int afterRecordIndex, int limit, int mediaPrefixBytes) throws SQLException {
+        Set<Part> parts = EnumSet.of(Part.TEXT, Part.KEYS);
+        // The archives stay on the server; only their leading bytes come back, from the first chunk
+        // or, for rows not yet moved to chunks, the old column
+        String sql = "SELECT " + columnsFor(parts)
+                + ", " + mediaPrefix(MediaKind.IMAGES) + " AS images_prefix, " + mediaPrefix(MediaKind.VIDEOS) + " AS videos_prefix"
+                + " FROM Hospital_Records WHERE record_index > ? ORDER BY record_index LIMIT ?";
+        List<PatientRecord> results = new ArrayList<>();
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            for (int i = 1; i <= 4; i++) stmt.setInt(i, mediaPrefixBytes);
+            stmt.setInt(5, afterRecordIndex);
+            stmt.setInt(6, limit);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                PatientRecord record = mapResultSetToRecord(rs, parts);
+                record.setMediaPrefix(MediaKind.IMAGES, rs.getBytes("images_prefix"));
+                record.setMediaPrefix(MediaKind.VIDEOS, rs.getBytes("videos_prefix"));
+                results.add(record);
+            }
+        }
+        return results;
+    }
+
+    // Takes two parameters, both the prefix length. Callers ask for at most a header, well inside one chunk
+    private static String mediaPrefix(MediaKind kind) {
+        return "COALESCE((SELECT SUBSTRING(c.bytes, 1, ?) FROM Hospital_Media_Chunks c"
+                + " WHERE c.record_index = Hospital_Records.record_index AND c.kind = " + kindCode(kind)
+                + " AND c.generation = Hospital_Records." + generationColumn(kind) + " AND c.seq = 0),"
+                + " SUBSTRING(" + mediaColumn(kind) + ", 1, ?))";
+    }
+
+    @Override
+    public List<PatientRecord> scanWrappedKeysAfter(int afterRecordIndex, int limit) throws SQLException {
+        String sql = "SELECT " + columnsFor(EnumSet.of(Part.KEYS)) + " FROM Hospital_Records WHERE record_index > ? ORDER BY record_index LIMIT ?";
+        List<PatientRecord> results = new ArrayList<>();
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            stmt.setInt(1, afterRecordIndex);
+            stmt.setInt(2, limit);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                results.add(mapResultSetToRecord(rs, EnumSet.of(Part.KEYS)));
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public int updateWrappedKeys(boolean isDoctor, List<WrappedKeyUpdate> updates) throws SQLException {
+        // The other role's column is never written, so a concurrent rotation of it cannot be undone here
+        String column = COLUMNS.get(isDoctor ? Field.DOCTOR_KEY : Field.NURSE_KEY);
+        String sql = "UPDATE Hospital_Records SET " + column + " = ? WHERE record_index = ? AND " + column + " = ?";
+        try (Connection conn = DBConnection.getConnection();
+             PreparedStatement stmt = conn.prepareStatement(sql)) {
+
+            for (WrappedKeyUpdate update : updates) {
+                stmt.setBytes(1, update.getReplacement());
+                stmt.setInt(2, update.getRecordIndex());
+                stmt.setBytes(3, update.getExpected());
+                stmt.addBatch();
+            }
+            // Sent as one multi-statement round trip (rewriteBatchedStatements=true), with a count per statement
+            int written = 0;
+            for (int count : stmt.executeBatch()) {
+                if (count > 0 || count == Statement.SUCCESS_NO_INFO) written++;
+            }
+            return written;
+        }
+    }
+
+    // Column list for a projection; record_index is always included
+    static String columnsFor(Set<Part> parts) {
+        StringBuilder sql = new StringBuilder("record_index");
+        if (parts.contains(Part.METADATA)) sql.append(", patient_id_hash, patient_name, patient_dob, check_in_date, doctor_name, nurse_name");
+        if (parts.contains(Part.TEXT)) sql.append(", encrypted_symptoms, encrypted_diagnosis");
+        if (parts.contains(Part.MEDIA)) sql.append(", encrypted_images, encrypted_videos");
+        if (parts.contains(Part.KEYS)) sql.append(", doctor_encrypted_aes_key, nurse_encrypted_aes_key");
+        return sql.toString();
+    }
+
+    // Maps exactly the columns selected by columnsFor(parts). Package-private so bench/ can measure it
+    PatientRecord mapResultSetToRecord(ResultSet rs, Set<Part> parts) throws SQLException {
         PatientRecord record = new PatientRecord();
         record.setRecordIndex(rs.getInt("record_index"));
-        record.setPatientName(rs.getString("patient_name"));
-        record.setPatientDob(rs.getDate("patient_dob"));
-        record.setDoctorName(rs.getString("doctor_name"));
-        record.setNurseName(rs.getString("nurse_name"));
-        record.setCheckInDate(rs.getTimestamp("check_in_date"));
-        
-        record.setEncryptedSymptoms(rs.getBytes("encrypted_symptoms"));
-        record.setEncryptedDiagnosis(rs.getBytes("encrypted_diagnosis"));
-        
-        // Check if columns exist before accessing (for search vs getById)
-        try {
+        if (parts.contains(Part.METADATA)) {
+            record.setPatientIdHash(rs.getString("patient_id_hash"));
+            record.setPatientName(rs.getString("patient_name"));
+            record.setPatientDob(rs.getDate("patient_dob"));
+            record.setDoctorName(rs.getString("doctor_name"));
+            record.setNurseName(rs.getString("nurse_name"));
+            record.setCheckInDate(rs.getTimestamp("check_in_date"));
+        }
+        if (parts.contains(Part.TEXT)) {
+            record.setEncryptedSymptoms(rs.getBytes("encrypted_symptoms"));
+            record.setEncryptedDiagnosis(rs.getBytes("encrypted_diagnosis"));
+        }
+        if (parts.contains(Part.MEDIA)) {
             record.setEncryptedImages(rs.getBytes("encrypted_images"));
             record.setEncryptedVideos(rs.getBytes("encrypted_videos"));
-        } catch (SQLException e) {
-            // Columns not present in this query (search optimization)
-            record.setEncryptedImages(null);
-            record.setEncryptedVideos(null);
         }
-
-        record.setDoctorEncryptedAesKey(rs.getBytes("doctor_encrypted_aes_key"));
-        record.setNurseEncryptedAesKey(rs.getBytes("nurse_encrypted_aes_key"));
-        
+        if (parts.contains(Part.KEYS)) {
+            record.setDoctorEncryptedAesKey(rs.getBytes("doctor_encrypted_aes_key"));
+            record.setNurseEncryptedAesKey(rs.getBytes("nurse_encrypted_aes_key"));
+        }
+        record.setLoadedParts(parts);
+        record.clearDirty();
         return record;
     }
 }
@@ -0,0 +1,102 @@
+package repository;
+
+import model.PatientRecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * Keyset position for paginated search: the sort key values and record_index of the last row
+ * returned, bound to the search type. Clients only ever see the opaque base64url token.
+ */
+final class SearchCursor {
+
+    private final String type;
+    private final List<String> sortKeys;
+    private final int recordIndex;
+
+    SearchCursor(String type, List<String> sortKeys, int recordIndex) {
+        this.type = type;
+        this.sortKeys = sortKeys;
+        this.recordIndex = recordIndex;
+    }
+
+    // Position after the last row of a page, matching the ORDER BY used for that search type
+    // (nameRank is 0 for an exact name match, 1 otherwise; ignored for other types)
+    static SearchCursor after(String type, PatientRecord last, int nameRank) {
+        List<String> keys;
+        if (type.equals("name")) {
+            keys = List.of(Integer.toString(nameRank), last.getPatientName());
+        } else if (type.equals("dob")) {
+            keys = List.of(last.getPatientDob().toString());
+        } else {
+            keys = List.of();
+        }
+        return new SearchCursor(type, keys, last.getRecordIndex());
+    }
+
+    String sortKey(int i) { return sortKeys.get(i); }
+    int getRecordIndex() { return recordIndex; }
+
+    String encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(type);
+            out.writeByte(sortKeys.size());
+            for (String key : sortKeys) {
+                out.writeUTF(key);
+            }
+            out.writeInt(recordIndex);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Null or empty token means "first page"; a token from a different search type is rejected
+    static SearchCursor decode(String token, String type) {
+        if (token == null || token.isEmpty()) return null;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(Base64.getUrlDecoder().decode(token)));
+            String tokenType = in.readUTF();
+            int n = in.readUnsignedByte();
+            List<String> keys = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                keys.add(in.readUTF());
+            }
+            int recordIndex = in.readInt();
+            if (in.read() != -1) throw new IllegalArgumentException("Trailing bytes in cursor");
+            if (!tokenType.equals(type)) {
+                throw new IllegalArgumentException("Cursor does not belong to a '" + type + "' search");
+            }
+            checkKeys(type, keys);
+            return new SearchCursor(tokenType, keys, recordIndex);
+        } catch (IOException | IllegalArgumentException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid search cursor", e);
+        }
+    }
+
+    // The keys must be exactly what after() writes for the type, so the searches can use them unchecked
+    private static void checkKeys(String type, List<String> keys) {
+        if (type.equals("name")) {
+            if (keys.size() != 2) throw new IllegalArgumentException("Name cursor needs 2 sort keys, got " + keys.size());
+            if (!keys.get(0).equals("0") && !keys.get(0).equals("1")) {
+                throw new IllegalArgumentException("Bad name rank in cursor: " + keys.get(0));
+            }
+        } else if (type.equals("dob")) {
+            if (keys.size() != 1) throw new IllegalArgumentException("Dob cursor needs 1 sort key, got " + keys.size());
+            LocalDate.parse(keys.get(0));
+        } else if (!keys.isEmpty()) {
+            throw new IllegalArgumentException("Cursor for a '" + type + "' search takes no sort keys");
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package repository;
+
+import model.PatientRecord;
+
+import java.util.List;
+
+// One page of search results; nextCursor is null on the last page
+public class SearchPage {
+
+    private final List<PatientRecord> records;
+    private final String nextCursor;
+
+    public SearchPage(List<PatientRecord> records, String nextCursor) {
+        this.records = records;
+        this.nextCursor = nextCursor;
+    }
+
+    public List<PatientRecord> getRecords() { return records; }
+    public String getNextCursor() { return nextCursor; }
+    public boolean hasMore() { return nextCursor != null; }
+}
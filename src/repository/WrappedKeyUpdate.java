@@ -0,0 +1,19 @@
+package repository;
+
+// One row's re-wrapped data key for updateWrappedKeys: written only if the column still holds expected
+public class WrappedKeyUpdate {
+
+    private final int recordIndex;
+    private final byte[] expected;
+    private final byte[] replacement;
+
+    public WrappedKeyUpdate(int recordIndex, byte[] expected, byte[] replacement) {
+        this.recordIndex = recordIndex;
+        this.expected = expected;
+        this.replacement = replacement;
+    }
+
+    public int getRecordIndex() { return recordIndex; }
+    public byte[] getExpected() { return expected; }
+    public byte[] getReplacement() { return replacement; }
+}
@@ -0,0 +1,102 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Admission control for one class of endpoints (login, search, media, write). At most maxConcurrent
+ * requests run at once; a request over the limit waits up to queueMillis for a slot and is otherwise
+ * answered 503 with Retry-After, so an overload sheds load instead of stalling every caller.
+ */
+class ConcurrencyLimiter {
+
+    private final String name;
+    private final int maxConcurrent;
+    private final long queueMillis;
+    private final int retryAfterSeconds;
+    private final Semaphore permits;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    ConcurrencyLimiter(String name, int maxConcurrent, long queueMillis, int retryAfterSeconds) {
+        if (maxConcurrent <= 0) throw new IllegalArgumentException("maxConcurrent must be positive");
+        this.name = name;
+        this.maxConcurrent = maxConcurrent;
+        this.queueMillis = queueMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+        this.permits = new Semaphore(maxConcurrent, true);
+    }
+
+    // Limits from -Dlimit.<name> (default given), -Dlimit.queueMillis and -Dlimit.retryAfterSeconds
+    static ConcurrencyLimiter fromProperties(String name, int defaultMax) {
+        return new ConcurrencyLimiter(name,
+                Integer.getInteger("limit." + name, defaultMax),
+                Long.getLong("limit.queueMillis", 250),
+                Integer.getInteger("limit.retryAfterSeconds", 1));
+    }
+
+    // As above, but never above ceiling: a larger configured value is lowered to it with a warning
+    static ConcurrencyLimiter fromProperties(String name, int defaultMax, int ceiling) {
+        int max = Integer.getInteger("limit." + name, Math.min(defaultMax, ceiling));
+        if (max > ceiling) {
+            System.out.println("⚠️ limit." + name + "=" + max + " exceeds " + ceiling + "; using " + ceiling);
+            max = ceiling;
+        }
+        return new ConcurrencyLimiter(name, max,
+                Long.getLong("limit.queueMillis", 250),
+                Integer.getInteger("limit.retryAfterSeconds", 1));
+    }
+
+    HttpHandler wrap(HttpHandler handler) {
+        return exchange -> {
+            if (!acquire()) {
+                reject(exchange);
+                return;
+            }
+            try {
+                handler.handle(exchange);
+            } finally {
+                permits.release();
+            }
+        };
+    }
+
+    int getInFlight() { return maxConcurrent - permits.availablePermits(); }
+    long getAdmitted() { return admitted.get(); }
+    long getRejected() { return rejected.get(); }
+
+    String stats() {
+        return String.format("%s: inFlight=%d/%d admitted=%d rejected=%d",
+                name, getInFlight(), maxConcurrent, getAdmitted(), getRejected());
+    }
+
+    private boolean acquire() {
+        try {
+            if (permits.tryAcquire(queueMillis, TimeUnit.MILLISECONDS)) {
+                admitted.incrementAndGet();
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        rejected.incrementAndGet();
+        return false;
+    }
+
+    private void reject(HttpExchange t) throws IOException {
+        byte[] body = ("Server busy (" + name + "), retry shortly").getBytes(StandardCharsets.UTF_8);
+        t.getResponseHeaders().set("Retry-After", Integer.toString(retryAfterSeconds));
+        t.sendResponseHeaders(503, body.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(body);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package server;
+
+import java.io.Closeable;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Base64;
+
+/**
+ * Streaming JSON encoder. Tokens are encoded straight to UTF-8 in a small buffer that is flushed to
+ * the underlying stream as it fills, so a response never exists as a whole String or byte[].
+ * Strings are escaped per RFC 8259 (plus U+2028/U+2029, which break some JavaScript parsers).
+ *
+ * Commas are tracked per nesting level; the caller only has to pair begin/end calls and put a
+ * name() before each value inside an object.
+ */
+final class JsonWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_DEPTH = 64;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+
+    private final OutputStream out;
+    private final byte[] buf = new byte[BUFFER_SIZE];
+    private int count;
+
+    // Per level: has a value already been written (so the next one needs a comma)
+    private final boolean[] hasValue = new boolean[MAX_DEPTH];
+    private int depth;
+    private boolean afterName;
+
+    JsonWriter(OutputStream out) {
+        this.out = out;
+    }
+
+    JsonWriter beginObject() throws IOException { return open('{'); }
+    JsonWriter endObject() throws IOException { return close('}'); }
+    JsonWriter beginArray() throws IOException { return open('['); }
+    JsonWriter endArray() throws IOException { return close(']'); }
+
+    JsonWriter name(String name) throws IOException {
+        separator();
+        string(name);
+        put(':');
+        afterName = true;
+        return this;
+    }
+
+    JsonWriter value(String value) throws IOException {
+        if (value == null) return nullValue();
+        separator();
+        string(value);
+        return this;
+    }
+
+    JsonWriter value(long value) throws IOException {
+        separator();
+        ascii(Long.toString(value));
+        return this;
+    }
+
+    JsonWriter value(boolean value) throws IOException {
+        separator();
+        ascii(value ? "true" : "false");
+        return this;
+    }
+
+    JsonWriter nullValue() throws IOException {
+        separator();
+        ascii("null");
+        return this;
+    }
+
+    // A Base64 string value read from content as it is encoded; content is not closed
+    JsonWriter base64Value(InputStream content) throws IOException {
+        separator();
+        put('"');
+        flushBuffer();
+        // Base64 output is plain ASCII, so it can bypass the buffer; the wrapper must not close out
+        try (OutputStream enc = Base64.getEncoder().wrap(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                // Keep the response open
+            }
+        })) {
+            content.transferTo(enc);
+        }
+        put('"');
+        return this;
+    }
+
+    // Push buffered output to the client, e.g. after each row so it arrives as soon as it is ready
+    void flush() throws IOException {
+        flushBuffer();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flushBuffer();
+        } finally {
+            out.close();
+        }
+    }
+
+    private JsonWriter open(char c) throws IOException {
+        separator();
+        if (depth == MAX_DEPTH - 1) throw new IllegalStateException("JSON nested too deeply");
+        put(c);
+        hasValue[++depth] = false;
+        return this;
+    }
+
+    private JsonWriter close(char c) throws IOException {
+        if (depth == 0) throw new IllegalStateException("Unbalanced " + c);
+        depth--;
+        put(c);
+        return this;
+    }
+
+    // Comma before every value or name except the first at its level; none between a name and its value
+    private void separator() throws IOException {
+        if (afterName) {
+            afterName = false;
+            return;
+        }
+        if (hasValue[depth]) put(',');
+        hasValue[depth] = true;
+    }
+
+    private void string(String s) throws IOException {
+        put('"');
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                switch (c) {
+                    case '"': put('\\'); put('"'); break;
+                    case '\\': put('\\'); put('\\'); break;
+                    case '\n': put('\\'); put('n'); break;
+                    case '\r': put('\\'); put('r'); break;
+                    case '\t': put('\\'); put('t'); break;
+                    case '\b': put('\\'); put('b'); break;
+                    case '\f': put('\\'); put('f'); break;
+                    default:
+                        if (c < 0x20 || c == 0x7f) unicodeEscape(c);
+                        else put(c);
+                }
+            } else if (c < 0x800) {
+                put(0xc0 | (c >> 6));
+                put(0x80 | (c & 0x3f));
+            } else if (c == 0x2028 || c == 0x2029) {
+                unicodeEscape(c);
+            } else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                put(0xf0 | (cp >> 18));
+                put(0x80 | ((cp >> 12) & 0x3f));
+                put(0x80 | ((cp >> 6) & 0x3f));
+                put(0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate: not encodable as UTF-8, escape it so the output stays valid
+                unicodeEscape(c);
+            } else {
+                put(0xe0 | (c >> 12));
+                put(0x80 | ((c >> 6) & 0x3f));
+                put(0x80 | (c & 0x3f));
+            }
+        }
+        put('"');
+    }
+
+    private void unicodeEscape(char c) throws IOException {
+        put('\\');
+        put('u');
+        put(HEX[(c >> 12) & 0xf]);
+        put(HEX[(c >> 8) & 0xf]);
+        put(HEX[(c >> 4) & 0xf]);
+        put(HEX[c & 0xf]);
+    }
+
+    private void ascii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++) put(s.charAt(i));
+    }
+
+    private void put(int b) throws IOException {
+        if (count == buf.length) flushBuffer();
+        buf[count++] = (byte) b;
+    }
+
+    private void flushBuffer() throws IOException {
+        if (count > 0) {
+            out.write(buf, 0, count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package server;
+
+import util.CryptoRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+
+/**
+ * Short-lived capability tokens for single media items. <img> and <video> cannot send an
+ * Authorization header, so their URLs carry one of these instead of the session token: it is an
+ * HMAC over record, kind, item index, role and expiry, good for that one item until it expires.
+ * A leaked URL (history, logs, Referer) therefore never grants the session itself.
+ *
+ * The key is random per process, so tokens do not survive a restart; the page just lists again.
+ */
+final class MediaTokens {
+
+    // Long enough to watch a video while seeking; override with -Dmedia.tokenTtlSeconds
+    private static final long TTL_SECONDS = Long.getLong("media.tokenTtlSeconds", 900);
+
+    private static final Base64.Encoder ENCODER = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODER = Base64.getUrlDecoder();
+
+    private final SecretKeySpec key;
+
+    MediaTokens() {
+        byte[] secret = new byte[32];
+        CryptoRandom.nextBytes(secret);
+        this.key = new SecretKeySpec(secret, "HmacSHA256");
+    }
+
+    // "<expiry>.<role>.<mac>"; id, kind and index are in the URL beside it and covered by the mac
+    String mint(int id, String kind, int index, String role) {
+        long expiry = System.currentTimeMillis() / 1000 + TTL_SECONDS;
+        return expiry + "." + role + "." + ENCODER.encodeToString(mac(expiry, role, id, kind, index));
+    }
+
+    // Role the token was minted for, or null if it is malformed, expired or for another item
+    String verify(String token, int id, String kind, int index) {
+        if (token == null) return null;
+        String[] parts = token.split("\\.", -1);
+        if (parts.length != 3) return null;
+        try {
+            long expiry = Long.parseLong(parts[0]);
+            if (expiry < System.currentTimeMillis() / 1000) return null;
+            byte[] expected = mac(expiry, parts[1], id, kind, index);
+            return MessageDigest.isEqual(expected, DECODER.decode(parts[2])) ? parts[1] : null;
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private byte[] mac(long expiry, String role, int id, String kind, int index) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            String payload = id + "|" + kind + "|" + index + "|" + role + "|" + expiry;
+            return mac.doFinal(payload.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 unavailable", e);
+        }
+    }
+}
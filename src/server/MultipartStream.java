@@ -0,0 +1,226 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming multipart/form-data reader. The body is scanned for boundaries inside one fixed-size
+ * buffer, and each part's content is exposed as an InputStream that ends at the next boundary, so
+ * memory use does not depend on the size of the upload.
+ *
+ * Usage: for (Part p; (p = parts.next()) != null; ) { read p.body ... }  Unread content of a part
+ * is skipped when next() is called.
+ */
+final class MultipartStream {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_LINE = 8 * 1024;
+    private static final int MAX_HEADER_LINES = 32;
+
+    static final class Part {
+        final String name;
+        final String filename;      // null for a plain form field
+        final String contentType;
+        final InputStream body;
+
+        Part(String name, String filename, String contentType, InputStream body) {
+            this.name = name;
+            this.filename = filename;
+            this.contentType = contentType;
+            this.body = body;
+        }
+
+        boolean isFile() { return filename != null; }
+    }
+
+    private final InputStream in;
+    private final byte[] delimiter;     // CRLF "--" boundary
+    private final byte[] buf;
+    private int head;
+    private int tail;
+    private boolean finished;
+    private PartStream current;
+
+    MultipartStream(InputStream in, String boundary) {
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.buf = new byte[Math.max(BUFFER_SIZE, delimiter.length * 2)];
+        // The first boundary is not preceded by CRLF; seed one so every boundary looks the same
+        buf[0] = '\r';
+        buf[1] = '\n';
+        tail = 2;
+        // Anything before the first boundary is preamble, skipped like the rest of a part
+        current = new PartStream();
+    }
+
+    // Boundary parameter of a multipart Content-Type header, or null
+    static String boundaryOf(String contentType) {
+        if (contentType == null) return null;
+        for (String param : contentType.split(";")) {
+            String p = param.trim();
+            if (p.regionMatches(true, 0, "boundary=", 0, 9)) {
+                String b = p.substring(9).trim();
+                if (b.length() >= 2 && b.startsWith("\"") && b.endsWith("\"")) b = b.substring(1, b.length() - 1);
+                return b.isEmpty() ? null : b;
+            }
+        }
+        return null;
+    }
+
+    // The next part, or null after the closing boundary
+    Part next() throws IOException {
+        if (finished) return null;
+        current.skipRest();
+
+        // After a boundary: "--" closes the body, otherwise the line ends and headers follow
+        ensure(2);
+        if (buf[head] == '-' && buf[head + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        readLine();
+
+        String name = null;
+        String filename = null;
+        String contentType = null;
+        for (int i = 0; ; i++) {
+            if (i == MAX_HEADER_LINES) throw new IOException("Too many multipart part headers");
+            String line = readLine();
+            if (line.isEmpty()) break;
+            int colon = line.indexOf(':');
+            if (colon < 0) continue;
+            String header = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (header.equalsIgnoreCase("Content-Disposition")) {
+                name = dispositionParam(value, "name");
+                filename = dispositionParam(value, "filename");
+            } else if (header.equalsIgnoreCase("Content-Type")) {
+                contentType = value;
+            }
+        }
+
+        current = new PartStream();
+        return new Part(name, filename, contentType, current);
+    }
+
+    // Read a form field's value as UTF-8, refusing anything larger than maxBytes
+    static String readField(Part part, int maxBytes) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[4096];
+        int n;
+        while ((n = part.body.read(chunk)) != -1) {
+            if (out.size() + n > maxBytes) throw new IOException("Form field '" + part.name + "' is too large");
+            out.write(chunk, 0, n);
+        }
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String dispositionParam(String disposition, String key) {
+        for (String param : disposition.split(";")) {
+            String p = param.trim();
+            int eq = p.indexOf('=');
+            if (eq < 0 || !p.substring(0, eq).trim().equalsIgnoreCase(key)) continue;
+            String v = p.substring(eq + 1).trim();
+            if (v.length() >= 2 && v.startsWith("\"") && v.endsWith("\"")) v = v.substring(1, v.length() - 1);
+            return v;
+        }
+        return null;
+    }
+
+    // Header lines are short; read one (without CRLF) from the buffer
+    private String readLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        while (true) {
+            ensure(1);
+            byte b = buf[head++];
+            if (b == '\r') {
+                ensure(1);
+                if (buf[head] == '\n') {
+                    head++;
+                    return line.toString(StandardCharsets.UTF_8);
+                }
+            }
+            if (line.size() == MAX_HEADER_LINE) throw new IOException("Multipart header line too long");
+            line.write(b);
+        }
+    }
+
+    private void ensure(int n) throws IOException {
+        while (tail - head < n) {
+            if (fill() < 0) throw new IOException("Unexpected end of multipart body");
+        }
+    }
+
+    // Compact the buffer and read more input; -1 at end of stream
+    private int fill() throws IOException {
+        if (head > 0) {
+            System.arraycopy(buf, head, buf, 0, tail - head);
+            tail -= head;
+            head = 0;
+        }
+        int n = in.read(buf, tail, buf.length - tail);
+        if (n > 0) tail += n;
+        return n;
+    }
+
+    // Position of the delimiter in buf[head, tail), or -1
+    private int findDelimiter() {
+        int last = tail - delimiter.length;
+        outer:
+        for (int i = head; i <= last; i++) {
+            if (buf[i] != delimiter[0]) continue;
+            for (int j = 1; j < delimiter.length; j++) {
+                if (buf[i + j] != delimiter[j]) continue outer;
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private final class PartStream extends InputStream {
+        private boolean done;
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (done) return -1;
+            if (len == 0) return 0;
+            while (true) {
+                int at = findDelimiter();
+                int available;
+                if (at >= 0) {
+                    available = at - head;
+                    if (available == 0) {
+                        head += delimiter.length;
+                        done = true;
+                        return -1;
+                    }
+                } else {
+                    // The tail of the buffer may hold the start of a delimiter; keep it back
+                    available = tail - head - (delimiter.length - 1);
+                }
+                if (available > 0) {
+                    int n = Math.min(len, available);
+                    System.arraycopy(buf, head, b, off, n);
+                    head += n;
+                    return n;
+                }
+                if (fill() < 0) throw new IOException("Unexpected end of multipart body");
+            }
+        }
+
+        void skipRest() throws IOException {
+            byte[] skip = new byte[8192];
+            while (read(skip, 0, skip.length) != -1) {
+                // Discard
+            }
+        }
+    }
+}
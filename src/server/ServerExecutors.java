@@ -0,0 +1,59 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Request executor for the HTTPS server, chosen with -Dserver.executor:
+ *
+ *   fixed    (default) platform thread pool of -Dserver.threads (default 8 per core; handlers
+ *            mostly wait on MySQL and the network)
+ *   virtual  one virtual thread per request. Looked up reflectively so the server still builds
+ *            and runs on JDKs without Loom; there it falls back to "fixed" with a notice
+ *
+ * Fixed is the default because CryptoPool keeps its Cipher and KeyFactory instances in
+ * ThreadLocals: a long-lived worker reuses them, while a fresh virtual thread per request
+ * initialises new ones every time and throws them away. Per-endpoint limits (ConcurrencyLimiter)
+ * bound the work either way.
+ */
+final class ServerExecutors {
+
+    private ServerExecutors() {}
+
+    static ExecutorService create() {
+        String kind = System.getProperty("server.executor", "fixed");
+        if ("virtual".equalsIgnoreCase(kind)) {
+            ExecutorService virtual = virtualThreadPerTask();
+            if (virtual != null) {
+                System.out.println("🧵 Request executor: virtual threads (CryptoPool instances are per request)");
+                return virtual;
+            }
+            System.out.println("🧵 Virtual threads not available on Java " + Runtime.version().feature()
+                    + "; using a fixed platform pool");
+        }
+        int threads = Integer.getInteger("server.threads", Runtime.getRuntime().availableProcessors() * 8);
+        System.out.println("🧵 Request executor: " + threads + " platform threads");
+        return Executors.newFixedThreadPool(threads, platformThreads());
+    }
+
+    private static ExecutorService virtualThreadPerTask() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ThreadFactory platformThreads() {
+        AtomicInteger n = new AtomicInteger();
+        return r -> {
+            Thread t = new Thread(r, "https-worker-" + n.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+}
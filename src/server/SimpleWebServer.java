@@ -6,39 +6,72 @@ import com.sun.net.httpserver.HttpsParameters;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpExchange;
 import model.PatientRecord;
+import repository.CachingHospitalRepository;
 import repository.HospitalRepository;
+import repository.InMemoryHospitalRepository;
+import repository.MediaBlob;
 import repository.MySQLHospitalRepository;
+import repository.SearchPage;
+import service.EnvelopeMigrator;
+import service.MediaArchive;
+import service.MediaUpload;
 import service.PatientService;
+import service.SegmentedGcm;
+import util.CryptoRandom;
+import util.DBConnection;
 import util.Hashing;
 
 import javax.net.ssl.*;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.*;
 import java.security.cert.CertificateException;
 import java.sql.Date;
+import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.HashMap;
-import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.EnumSet;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
 
 public class SimpleWebServer {
 
     private static final int PORT = 8000;
-    private static final HospitalRepository repository = new MySQLHospitalRepository();
+    private static final HospitalRepository repository = createRepository();
     private static final PatientService patientService = new PatientService();
+    // Search page size: ?limit= is clamped to this range; override with -Dsearch.pageSize / -Dsearch.maxPageSize
+    private static final int SEARCH_PAGE_SIZE = Integer.getInteger("search.pageSize", 50);
+    private static final int SEARCH_MAX_PAGE_SIZE = Integer.getInteger("search.maxPageSize", 200);
     
     // Token -> Role
     private static final Map<String, String> sessions = new ConcurrentHashMap<>();
+    // Per-item URLs for <img>/<video>, so the session token never goes into a query string
+    private static final MediaTokens mediaTokens = new MediaTokens();
+
+    // -Drepository=memory runs without MySQL (load tests, profiling). getById goes through a
+    // byte-bounded record cache; -Drecord.cache.maxBytes=0 turns it off
+    private static HospitalRepository createRepository() {
+        HospitalRepository store;
+        if ("memory".equalsIgnoreCase(System.getProperty("repository", "mysql"))) {
+            System.out.println("⚠️ Using in-memory repository: records are lost on restart");
+            store = new InMemoryHospitalRepository();
+        } else {
+            store = new MySQLHospitalRepository();
+        }
+        long cacheBytes = Long.getLong("record.cache.maxBytes", CachingHospitalRepository.DEFAULT_MAX_BYTES);
+        return cacheBytes > 0 ? new CachingHospitalRepository(store, cacheBytes) : store;
+    }
 
     public void start() throws IOException, NoSuchAlgorithmException, KeyStoreException, CertificateException, UnrecoverableKeyException, KeyManagementException {
+        // Initialise the shared DRBG (runs its self-test) before accepting any requests
+        CryptoRandom.get();
+
         // Load Keystore
         char[] password = "password".toCharArray();
         KeyStore ks = KeyStore.getInstance("PKCS12");
@@ -72,42 +105,44 @@ public class SimpleWebServer {
             }
         });
 
-        // Serve HTML
-        server.createContext("/", new StaticHandler());
-
-        // API Endpoints
-        server.createContext("/api/login", new LoginHandler());
-        server.createContext("/api/insert", new InsertHandler());
-        server.createContext("/api/search", new SearchHandler());
-        server.createContext("/api/update", new UpdateHandler());
-        server.createContext("/api/media", new MediaHandler());
-
-        server.setExecutor(null); // creates a default executor
+        // Serve HTML from memory; edits under src/web are picked up without a restart (-Dstatic.watch=false to disable)
+        StaticAssets assets = new StaticAssets(Paths.get("src/web"));
+        assets.load();
+        if (Boolean.parseBoolean(System.getProperty("static.watch", "true"))) assets.watch();
+        server.createContext("/", assets);
+
+        // API Endpoints, each class behind its own concurrency limit (-Dlimit.login / search / media / write).
+        // Search and media decrypt on the CPU; media and writes also hold large payloads in memory.
+        int cores = Runtime.getRuntime().availableProcessors();
+        ConcurrencyLimiter write = ConcurrencyLimiter.fromProperties("write", Math.max(2, cores / 2));
+        server.createContext("/api/login", ConcurrencyLimiter.fromProperties("login", 32).wrap(new LoginHandler()));
+        server.createContext("/api/insert", write.wrap(new InsertHandler()));
+        server.createContext("/api/search", ConcurrencyLimiter.fromProperties("search", cores * 2).wrap(new SearchHandler()));
+        server.createContext("/api/update", write.wrap(new UpdateHandler()));
+        ConcurrencyLimiter media = ConcurrencyLimiter.fromProperties("media", Math.max(2, cores / 2));
+        server.createContext("/api/media", media.wrap(new MediaHandler()));
+        server.createContext("/api/media/list", media.wrap(new MediaListHandler()));
+        // Video playback keeps a range request open while the client buffers. Each item request reads
+        // through a pooled connection, so they may take at most half the pool (never all of it) and
+        // search and login still get connections under heavy playback
+        int poolMax = DBConnection.getPoolMaxSize();
+        server.createContext("/api/media/item", ConcurrencyLimiter.fromProperties("mediaItem",
+                Math.max(1, poolMax / 2), Math.max(1, poolMax - 1)).wrap(new MediaItemHandler()));
+
+        // Handlers no longer run on the single dispatcher thread
+        server.setExecutor(ServerExecutors.create());
         System.out.println("Server started on https://localhost:" + PORT);
         server.start();
-    }
 
-    static class StaticHandler implements HttpHandler {
-        @Override
-        public void handle(HttpExchange t) throws IOException {
-            String path = t.getRequestURI().getPath();
-            if (path.equals("/")) path = "/index.html";
-            
-            // Prevent directory traversal
-            if (path.contains("..")) {
-                sendResponse(t, 403, "Forbidden");
-                return;
-            }
+        try {
+            repository.verifySchema();
+        } catch (Exception e) {
+            System.out.println("⚠️ Schema check skipped: " + e.getMessage());
+        }
 
-            try {
-                byte[] content = Files.readAllBytes(Paths.get("src/web" + path));
-                t.sendResponseHeaders(200, content.length);
-                OutputStream os = t.getResponseBody();
-                os.write(content);
-                os.close();
-            } catch (IOException e) {
-                sendResponse(t, 404, "File Not Found");
-            }
+        // Opt-in background rewrite of old-format ciphertexts (-Dmigrate.envelope=true)
+        if (Boolean.getBoolean("migrate.envelope")) {
+            new EnvelopeMigrator(repository, patientService).start();
         }
     }
 
@@ -169,73 +204,73 @@ public class SimpleWebServer {
         }
     }
 
-    private static List<Path> parseMultipart(InputStream is, String boundary, Map<String, String> params) throws IOException {
-        List<Path> files = new ArrayList<>();
-        // Ensure media directory exists
-        Files.createDirectories(Paths.get("media"));
-
-        // Read all bytes (simplistic approach for demo)
-        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-        int nRead;
-        byte[] data = new byte[1024];
-        while ((nRead = is.read(data, 0, data.length)) != -1) {
-            buffer.write(data, 0, nRead);
+    // Form fields are small; anything bigger is rejected rather than buffered. -Dupload.maxFieldBytes=N
+    private static final int MAX_FIELD_BYTES = Integer.getInteger("upload.maxFieldBytes", 1024 * 1024);
+    // Whole insert/update request body, files included; bigger requests get 413. -Dupload.maxBytes=N
+    private static final long MAX_UPLOAD_BYTES = Long.getLong("upload.maxBytes", 512L * 1024 * 1024);
+
+    static class UploadTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UploadTooLargeException() {
+            super("Upload exceeds " + MAX_UPLOAD_BYTES + " bytes");
         }
-        buffer.flush();
-        byte[] bodyBytes = buffer.toByteArray();
-
-        // Split by boundary
-        // Note: This is a very basic parser. Production code should use Apache Commons FileUpload.
-        String body = new String(bodyBytes, StandardCharsets.ISO_8859_1); // Use ISO-8859-1 to preserve byte values
-        String[] parts = body.split("--" + boundary);
-
-        for (String part : parts) {
-            if (part.contains("Content-Disposition: form-data;")) {
-                String[] headersAndBody = part.split("\r\n\r\n", 2);
-                if (headersAndBody.length < 2) continue;
-
-                String headers = headersAndBody[0];
-                String content = headersAndBody[1];
-                // Remove trailing newlines/boundary markers from content
-                if (content.endsWith("\r\n")) content = content.substring(0, content.length() - 2);
-
-                String name = extractHeaderValue(headers, "name");
-                String filename = extractHeaderValue(headers, "filename");
-
-                if (filename != null) {
-                    // It's a file
-                    if (!filename.isEmpty()) {
-                        // Convert content back to bytes
-                        byte[] fileBytes = content.getBytes(StandardCharsets.ISO_8859_1);
-                        Path filePath = Paths.get("media", UUID.randomUUID().toString() + "_" + filename);
-                        Files.write(filePath, fileBytes);
-                        files.add(filePath);
-                        System.out.println("Saved uploaded file: " + filePath);
-                    }
-                } else {
-                    // It's a field
-                    params.put(name, content);
-                }
+    }
+
+    // Request body capped at MAX_UPLOAD_BYTES: a declared Content-Length over it is refused before
+    // anything is read, and a chunked body fails as soon as it passes the cap
+    private static InputStream uploadBody(HttpExchange t) throws UploadTooLargeException {
+        String declared = t.getRequestHeaders().getFirst("Content-Length");
+        if (declared != null) {
+            try {
+                if (Long.parseLong(declared.trim()) > MAX_UPLOAD_BYTES) throw new UploadTooLargeException();
+            } catch (NumberFormatException e) {
+                // The server has already rejected or framed it; the running count below still applies
             }
         }
-        return files;
+        return new FilterInputStream(t.getRequestBody()) {
+            private long count;
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b != -1) count(1);
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) count(n);
+                return n;
+            }
+
+            private void count(int n) throws UploadTooLargeException {
+                count += n;
+                if (count > MAX_UPLOAD_BYTES) throw new UploadTooLargeException();
+            }
+        };
     }
 
-    private static String extractHeaderValue(String headers, String key) {
-        for (String line : headers.split("\r\n")) {
-            if (line.contains(key + "=")) {
-                int start = line.indexOf(key + "=\"") + key.length() + 2;
-                int end = line.indexOf("\"", start);
-                return line.substring(start, end);
+    // Stream the body part by part: fields land in params, files are encrypted into upload as they arrive
+    private static void parseMultipart(InputStream is, String boundary, Map<String, String> params, MediaUpload upload) throws IOException {
+        MultipartStream parts = new MultipartStream(is, boundary);
+        for (MultipartStream.Part part; (part = parts.next()) != null; ) {
+            if (part.isFile()) {
+                if (!part.filename.isEmpty() && !upload.addFile(part.filename, part.body)) {
+                    System.out.println("Skipped unsupported upload: " + part.filename);
+                }
+            } else if (part.name != null) {
+                params.put(part.name, MultipartStream.readField(part, MAX_FIELD_BYTES));
             }
         }
-        return null;
     }
 
     static class InsertHandler implements HttpHandler {
         @Override
         public void handle(HttpExchange t) throws IOException {
             if ("POST".equals(t.getRequestMethod())) {
+                MediaUpload upload = null;
                 try {
                     // Auth Check
                     String authHeader = t.getRequestHeaders().getFirst("Authorization");
@@ -256,15 +291,19 @@ public class SimpleWebServer {
 
                     String contentType = t.getRequestHeaders().getFirst("Content-Type");
                     Map<String, String> params = new HashMap<>();
-                    List<Path> uploadedFiles = new ArrayList<>();
 
                     if (contentType != null && contentType.contains("multipart/form-data")) {
                         // Handle Multipart
-                        String boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
-                        uploadedFiles = parseMultipart(t.getRequestBody(), boundary, params);
+                        String boundary = MultipartStream.boundaryOf(contentType);
+                        if (boundary == null) {
+                            sendResponse(t, 400, "Missing multipart boundary");
+                            return;
+                        }
+                        upload = patientService.beginMediaUpload();
+                        parseMultipart(uploadBody(t), boundary, params, upload);
                     } else {
                         // Handle JSON
-                        params = parseJsonBody(t.getRequestBody());
+                        params = parseJsonBody(uploadBody(t));
                     }
                     
                     PatientRecord record = new PatientRecord();
@@ -297,18 +336,21 @@ public class SimpleWebServer {
                         record.setNurseName(params.get("nurseName"));
                     }
 
-                    patientService.processEncryption(record, params.get("symptoms"), params.get("diagnosis"), uploadedFiles);
-                    repository.insert(record);
-                    
-                    // Cleanup uploaded files
-                    for (Path p : uploadedFiles) {
-                        try { Files.deleteIfExists(p); } catch (Exception ignore) {}
+                    if (upload != null) {
+                        patientService.processEncryption(record, params.get("symptoms"), params.get("diagnosis"), upload);
+                    } else {
+                        patientService.processEncryption(record, params.get("symptoms"), params.get("diagnosis"));
                     }
+                    repository.insert(record);
                     
                     sendResponse(t, 200, "Inserted");
+                } catch (UploadTooLargeException e) {
+                    sendResponse(t, 413, e.getMessage());
                 } catch (Exception e) {
                     e.printStackTrace();
                     sendResponse(t, 500, "Error: " + e.getMessage());
+                } finally {
+                    if (upload != null) upload.close();
                 }
             }
         }
@@ -323,6 +365,16 @@ public class SimpleWebServer {
                     Map<String, String> queryParams = parseQueryParams(t.getRequestURI().getQuery());
                     String type = queryParams.get("type");
                     String query = queryParams.get("query");
+                    String cursor = queryParams.get("cursor");
+                    int pageSize = SEARCH_PAGE_SIZE;
+                    if (queryParams.containsKey("limit")) {
+                        try {
+                            pageSize = Math.max(1, Math.min(SEARCH_MAX_PAGE_SIZE, Integer.parseInt(queryParams.get("limit"))));
+                        } catch (NumberFormatException e) {
+                            sendResponse(t, 400, "Invalid limit");
+                            return;
+                        }
+                    }
                     
                     // Auto-detect role from session
                     String role = getRoleFromRequest(t);
@@ -330,38 +382,39 @@ public class SimpleWebServer {
                     
                     System.out.println("Search Request - Role detected: " + role);
 
-                    List<PatientRecord> results = repository.search(query, type);
-                    
-                    // Decrypt results for display
-                    List<Map<String, Object>> jsonResults = new ArrayList<>();
-                    for (PatientRecord r : results) {
-                        try {
-                            String[] decrypted = patientService.decryptMedicalData(r, isDoctor);
-                            // Skip media decryption for search results
-                            
-                            Map<String, Object> map = new HashMap<>();
-                            map.put("patientName", r.getPatientName());
-                            map.put("patientDob", r.getPatientDob().toString());
-                            map.put("checkInDate", r.getCheckInDate() != null ? r.getCheckInDate().toString() : "");
-                            map.put("doctorName", r.getDoctorName());
-                            map.put("nurseName", r.getNurseName());
-                            map.put("symptoms", decrypted[0]);
-                            map.put("diagnosis", decrypted[1]);
-                            map.put("recordIndex", r.getRecordIndex());
-                            
-                            // map.put("images", media.get("images"));
-                            // map.put("videos", media.get("videos"));
-                            
-                            jsonResults.add(map);
-                        } catch (Exception e) {
-                            // Skip records we can't decrypt (wrong key/role)
-                            System.out.println("Failed to decrypt record " + r.getRecordIndex());
+                    SearchPage page;
+                    try {
+                        if ("keyword".equals(type)) {
+                            // Blind index lookup: only matching records are fetched and decrypted
+                            page = repository.searchByTerms(patientService.keywordTokens(query), cursor, pageSize);
+                        } else {
+                            page = repository.search(query, type, cursor, pageSize);
                         }
+                    } catch (IllegalArgumentException e) {
+                        sendResponse(t, 400, "Invalid cursor");
+                        return;
                     }
+                    List<PatientRecord> results = page.getRecords();
 
-                    String json = toJson(jsonResults);
-                    t.getResponseHeaders().set("Content-Type", "application/json");
-                    sendResponse(t, 200, json);
+                    // Body stays a plain array; the continuation token for the next page travels in a header
+                    if (page.hasMore()) {
+                        t.getResponseHeaders().set("X-Next-Cursor", page.getNextCursor());
+                    }
+                    // Rows are decrypted in parallel and written in order, each as soon as it is ready
+                    sendJson(t, json -> {
+                        json.beginArray();
+                        patientService.decryptMedicalDataEach(results, isDoctor, (i, decrypted) -> {
+                            PatientRecord r = results.get(i);
+                            if (decrypted == null) {
+                                // Skip records we can't decrypt (wrong key/role)
+                                System.out.println("Failed to decrypt record " + r.getRecordIndex());
+                                return;
+                            }
+                            writeSearchRow(json, r, decrypted);
+                            json.flush();
+                        });
+                        json.endArray();
+                    });
                 } catch (Exception e) {
                     e.printStackTrace();
                     sendResponse(t, 500, e.getMessage());
@@ -387,16 +440,37 @@ public class SimpleWebServer {
                     String role = getRoleFromRequest(t);
                     boolean isDoctor = "doctor".equalsIgnoreCase(role);
 
-                    PatientRecord r = repository.getById(id);
+                    // Optional kind=images|videos leaves the other array empty
+                    String only = queryParams.get("kind");
+                    PatientRecord.MediaKind onlyKind = kindOf(only);
+                    if (only != null && onlyKind == null) {
+                        sendResponse(t, 400, "kind must be images or videos");
+                        return;
+                    }
+
+                    // Keys only; the media archives are streamed from the database as they are decrypted
+                    PatientRecord r = repository.getById(id, EnumSet.of(PatientRecord.Part.KEYS));
                     if (r == null) {
                         sendResponse(t, 404, "Record not found");
                         return;
                     }
 
-                    Map<String, List<String>> media = patientService.getDecryptedMedia(r, isDoctor);
-                    String json = toJson(media);
-                    t.getResponseHeaders().set("Content-Type", "application/json");
-                    sendResponse(t, 200, json);
+                    // Each file is decrypted, unzipped and Base64-encoded on its way to the client
+                    try (InputStream images = onlyKind == PatientRecord.MediaKind.VIDEOS ? null
+                                : repository.openMedia(id, PatientRecord.MediaKind.IMAGES);
+                         InputStream videos = onlyKind == PatientRecord.MediaKind.IMAGES ? null
+                                : repository.openMedia(id, PatientRecord.MediaKind.VIDEOS)) {
+                        sendJson(t, json -> {
+                            json.beginObject();
+                            json.name("images").beginArray();
+                            patientService.forEachDecryptedMedia(r, isDoctor, images, (name, content) -> json.base64Value(content));
+                            json.endArray();
+                            json.name("videos").beginArray();
+                            patientService.forEachDecryptedMedia(r, isDoctor, videos, (name, content) -> json.base64Value(content));
+                            json.endArray();
+                            json.endObject();
+                        });
+                    }
 
                 } catch (Exception e) {
                     e.printStackTrace();
@@ -408,10 +482,222 @@ public class SimpleWebServer {
         }
     }
 
+    // Lists a record's media items: {"items":[{"kind","index","name","size","contentType","token"}],
+    // "legacy":[kind...]}. Only the archives' directories are decrypted, never the files themselves.
+    // Archives still in the legacy format cannot be read in pieces; they are named in "legacy" and
+    // must be loaded whole through /api/media?kind= until the envelope migration rewrites them.
+    static class MediaListHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            if (!"GET".equals(t.getRequestMethod())) {
+                sendResponse(t, 405, "Method Not Allowed");
+                return;
+            }
+            try {
+                Map<String, String> queryParams = parseQueryParams(t.getRequestURI().getQuery());
+                String role = getRoleFromSession(bearerSession(t));
+                if (role == null) {
+                    sendResponse(t, 401, "Unauthorized");
+                    return;
+                }
+                int id;
+                try {
+                    id = Integer.parseInt(queryParams.get("id"));
+                } catch (NumberFormatException e) {
+                    sendResponse(t, 400, "Missing or invalid id");
+                    return;
+                }
+
+                PatientRecord r = repository.getById(id, EnumSet.of(PatientRecord.Part.KEYS));
+                if (r == null) {
+                    sendResponse(t, 404, "Record not found");
+                    return;
+                }
+                Map<PatientRecord.MediaKind, MediaArchive> archives = new EnumMap<>(PatientRecord.MediaKind.class);
+                List<PatientRecord.MediaKind> legacy = new ArrayList<>();
+                for (PatientRecord.MediaKind kind : PatientRecord.MediaKind.values()) {
+                    try {
+                        MediaArchive archive = openArchive(r, "doctor".equalsIgnoreCase(role), kind);
+                        if (archive != null) archives.put(kind, archive);
+                    } catch (SegmentedGcm.NotSegmentedException e) {
+                        legacy.add(kind);
+                        System.out.println("⚠️ Record " + id + " " + kindName(kind) + " are in the legacy format; "
+                                + "run with -Dmigrate.envelope=true to make them seekable");
+                    }
+                }
+
+                sendJson(t, json -> {
+                    json.beginObject().name("items").beginArray();
+                    for (Map.Entry<PatientRecord.MediaKind, MediaArchive> e : archives.entrySet()) {
+                        for (MediaArchive.Item item : e.getValue().getItems()) {
+                            json.beginObject();
+                            json.name("kind").value(kindName(e.getKey()));
+                            json.name("index").value(item.getIndex());
+                            json.name("name").value(item.getName());
+                            json.name("size").value(item.getSize());
+                            json.name("contentType").value(item.getContentType());
+                            // For /api/media/item?...&token=, which media elements load without headers
+                            json.name("token").value(mediaTokens.mint(id, kindName(e.getKey()), item.getIndex(), role));
+                            json.endObject();
+                        }
+                    }
+                    json.endArray();
+                    json.name("legacy").beginArray();
+                    for (PatientRecord.MediaKind kind : legacy) json.value(kindName(kind));
+                    json.endArray().endObject();
+                });
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(t, 500, e.getMessage());
+            }
+        }
+    }
+
+    // One media item as raw bytes: /api/media/item?id=N&kind=images|videos&index=I, authorised by a
+    // Bearer header or by the item's token from /api/media/list (&token=). Honours a single
+    // "Range: bytes=..." so video can be seeked and played while it downloads; only the encrypted
+    // segments covering the range are read and decrypted.
+    static class MediaItemHandler implements HttpHandler {
+        @Override
+        public void handle(HttpExchange t) throws IOException {
+            boolean head = "HEAD".equals(t.getRequestMethod());
+            if (!head && !"GET".equals(t.getRequestMethod())) {
+                sendResponse(t, 405, "Method Not Allowed");
+                return;
+            }
+            try {
+                Map<String, String> queryParams = parseQueryParams(t.getRequestURI().getQuery());
+                PatientRecord.MediaKind kind = kindOf(queryParams.get("kind"));
+                int id;
+                int index;
+                try {
+                    id = Integer.parseInt(queryParams.get("id"));
+                    index = Integer.parseInt(queryParams.get("index"));
+                } catch (NumberFormatException e) {
+                    sendResponse(t, 400, "Missing or invalid id/index");
+                    return;
+                }
+                if (kind == null) {
+                    sendResponse(t, 400, "kind must be images or videos");
+                    return;
+                }
+                String role = getRoleFromSession(bearerSession(t));
+                if (role == null) role = mediaTokens.verify(queryParams.get("token"), id, kindName(kind), index);
+                if (role == null) {
+                    sendResponse(t, 401, "Unauthorized");
+                    return;
+                }
+
+                PatientRecord r = repository.getById(id, EnumSet.of(PatientRecord.Part.KEYS));
+                MediaArchive archive;
+                try {
+                    archive = r == null ? null : openArchive(r, "doctor".equalsIgnoreCase(role), kind);
+                } catch (SegmentedGcm.NotSegmentedException e) {
+                    // Never listed as items, so only reached by a hand-made URL; see MediaListHandler
+                    sendResponse(t, 409, e.getMessage());
+                    return;
+                }
+                if (archive == null || index < 0 || index >= archive.getItems().size()) {
+                    sendResponse(t, 404, "Media item not found");
+                    return;
+                }
+                MediaArchive.Item item = archive.getItems().get(index);
+                long size = item.getSize();
+
+                // Without validators to compare, a conditional range (If-Range) always gets the whole item
+                long[] range = t.getRequestHeaders().containsKey("If-Range")
+                        ? null : parseRange(t.getRequestHeaders().getFirst("Range"), size);
+                t.getResponseHeaders().set("Accept-Ranges", "bytes");
+                t.getResponseHeaders().set("Cache-Control", "private, no-store");
+                if (range != null && range.length == 0) {
+                    t.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                    sendResponse(t, 416, "Range Not Satisfiable");
+                    return;
+                }
+
+                long start = range != null ? range[0] : 0;
+                long length = range != null ? range[1] - range[0] + 1 : size;
+                int code = range != null ? 206 : 200;
+                t.getResponseHeaders().set("Content-Type", item.getContentType());
+                if (range != null) t.getResponseHeaders().set("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+                if (head || length == 0) {
+                    t.getResponseHeaders().set("Content-Length", String.valueOf(length));
+                    t.sendResponseHeaders(code, -1);
+                    t.close();
+                    return;
+                }
+
+                try (InputStream in = archive.openItem(item, start, length)) {
+                    t.sendResponseHeaders(code, length);
+                    try (OutputStream os = t.getResponseBody()) {
+                        in.transferTo(os);
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+                sendResponse(t, 500, e.getMessage());
+            }
+        }
+    }
+
+    // Single byte range as {first, last} (inclusive, clipped to size); null to send the whole item (no,
+    // malformed or multi-range header); empty when the range cannot be satisfied
+    static long[] parseRange(String header, long size) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) return null;
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                // Suffix range: the final N bytes
+                long n = Long.parseLong(last);
+                if (n < 0) return null;
+                if (n == 0 || size == 0) return new long[0];
+                return new long[]{Math.max(0, size - n), size - 1};
+            }
+            long from = Long.parseLong(first);
+            long to = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+            if (from < 0 || to < from) return null;
+            if (from >= size) return new long[0];
+            return new long[]{from, Math.min(to, size - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Every range the request reads comes from the archive version pinned here, never a mix of two
+    private static MediaArchive openArchive(PatientRecord r, boolean isDoctor, PatientRecord.MediaKind kind) throws Exception {
+        MediaBlob blob = repository.openMediaBlob(r.getRecordIndex(), kind);
+        if (blob == null) return null;
+        return patientService.openMediaArchive(r, isDoctor, (offset, length) -> {
+            try {
+                return blob.open(offset, length);
+            } catch (SQLException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+        }, blob.length());
+    }
+
+    private static PatientRecord.MediaKind kindOf(String name) {
+        if ("images".equals(name)) return PatientRecord.MediaKind.IMAGES;
+        if ("videos".equals(name)) return PatientRecord.MediaKind.VIDEOS;
+        return null;
+    }
+
+    private static String kindName(PatientRecord.MediaKind kind) {
+        return kind == PatientRecord.MediaKind.IMAGES ? "images" : "videos";
+    }
+
     static class UpdateHandler implements HttpHandler {
+        // Text edits that lose the race for the data key this many times in a row get a 409
+        private static final int UPDATE_ATTEMPTS = 3;
+
         @Override
         public void handle(HttpExchange t) throws IOException {
             if ("POST".equals(t.getRequestMethod())) {
+                MediaUpload upload = null;
                 try {
                     // Auth Check
                     String authHeader = t.getRequestHeaders().getFirst("Authorization");
@@ -428,61 +714,66 @@ public class SimpleWebServer {
 
                     String contentType = t.getRequestHeaders().getFirst("Content-Type");
                     Map<String, String> params = new HashMap<>();
-                    List<Path> uploadedFiles = new ArrayList<>();
 
                     if (contentType != null && contentType.contains("multipart/form-data")) {
-                        String boundary = contentType.substring(contentType.indexOf("boundary=") + 9);
-                        uploadedFiles = parseMultipart(t.getRequestBody(), boundary, params);
+                        String boundary = MultipartStream.boundaryOf(contentType);
+                        if (boundary == null) {
+                            sendResponse(t, 400, "Missing multipart boundary");
+                            return;
+                        }
+                        upload = patientService.beginMediaUpload();
+                        parseMultipart(uploadBody(t), boundary, params, upload);
                     } else {
-                        params = parseJsonBody(t.getRequestBody());
+                        params = parseJsonBody(uploadBody(t));
                     }
                     
                     int recordIndex = Integer.parseInt(params.get("recordIndex"));
-                    PatientRecord existing = repository.getById(recordIndex);
-                    
-                    if (existing == null) {
-                        sendResponse(t, 404, "Record Not Found");
-                        return;
-                    }
-
-                    // Update allowed fields
-                    if (params.containsKey("patientName")) existing.setPatientName(params.get("patientName"));
-                    if (params.containsKey("patientDob")) existing.setPatientDob(Date.valueOf(params.get("patientDob")));
-                    
-                    // Check-in, Doctor, Nurse are preserved from 'existing' automatically.
+                    boolean textOnly = upload == null || !upload.hasFiles();
+                    boolean written = false;
+                    // A text edit re-encrypts under the data key it read; if a media upload or key rotation
+                    // swaps the key first, the guarded write matches nothing and the edit is redone on a fresh read
+                    for (int attempt = 0; attempt < UPDATE_ATTEMPTS && !written; attempt++) {
+                        // Media is never read here: a text edit keeps the stored blobs, new uploads replace them
+                        PatientRecord existing = repository.getById(recordIndex,
+                                EnumSet.of(PatientRecord.Part.METADATA, PatientRecord.Part.TEXT, PatientRecord.Part.KEYS));
+
+                        if (existing == null) {
+                            sendResponse(t, 404, "Record Not Found");
+                            return;
+                        }
 
-                    // Media Handling: If no new files, try to restore existing ones
-                    if (uploadedFiles.isEmpty()) {
-                        String role = getRoleFromRequest(t);
-                        boolean isDoctor = "doctor".equalsIgnoreCase(role);
-                        try {
-                            // Decrypt and restore to disk
-                            patientService.decryptAndRestore(existing, isDoctor);
-                            
-                            // Find restored files
-                            try (java.util.stream.Stream<Path> stream = Files.list(Paths.get("media"))) {
-                                List<Path> restored = stream
-                                    .filter(p -> p.getFileName().toString().startsWith("restored_" + existing.getRecordIndex() + "_"))
-                                    .collect(java.util.stream.Collectors.toList());
-                                uploadedFiles.addAll(restored);
-                            }
-                        } catch (Exception e) {
-                            System.out.println("Warning: Could not restore media for update: " + e.getMessage());
+                        // Update allowed fields
+                        if (params.containsKey("patientName")) existing.setPatientName(params.get("patientName"));
+                        if (params.containsKey("patientDob")) existing.setPatientDob(Date.valueOf(params.get("patientDob")));
+
+                        // Check-in, Doctor, Nurse are preserved from 'existing' automatically.
+
+                        if (textOnly) {
+                            // Re-encrypt only the text under the record's existing data key; media and wrapped keys are untouched
+                            String role = getRoleFromRequest(t);
+                            boolean isDoctor = "doctor".equalsIgnoreCase(role);
+                            patientService.updateText(existing, params.get("symptoms"), params.get("diagnosis"), isDoctor);
+                            written = repository.updateIfKeysUnchanged(existing);
+                        } else {
+                            // New data key for everything: text, media and both wrapped keys are replaced together
+                            patientService.processEncryption(existing, params.get("symptoms"), params.get("diagnosis"), upload);
+                            repository.update(existing);
+                            written = true;
                         }
                     }
-                    
-                    patientService.processEncryption(existing, params.get("symptoms"), params.get("diagnosis"), uploadedFiles);
-                    repository.update(existing);
-                    
-                    // Cleanup
-                    for (Path p : uploadedFiles) {
-                        try { Files.deleteIfExists(p); } catch (Exception ignore) {}
+                    if (!written) {
+                        sendResponse(t, 409, "Record changed concurrently, please retry");
+                        return;
                     }
-                    
+
                     sendResponse(t, 200, "Updated");
+                } catch (UploadTooLargeException e) {
+                    sendResponse(t, 413, e.getMessage());
                 } catch (Exception e) {
                     e.printStackTrace();
                     sendResponse(t, 500, "Error: " + e.getMessage());
+                } finally {
+                    if (upload != null) upload.close();
                 }
             }
         }
@@ -490,6 +781,11 @@ public class SimpleWebServer {
 
     // Helpers
     private static void sendResponse(HttpExchange t, int code, String response) throws IOException {
+        if (t.getResponseCode() != -1) {
+            // A streamed body is already under way: the status cannot change, and ending the body
+            // cleanly would pass a truncated document off as complete, so drop the connection instead
+            throw new IOException("Response already started; aborting: " + response);
+        }
         byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
         t.sendResponseHeaders(code, bytes.length);
         OutputStream os = t.getResponseBody();
@@ -523,57 +819,43 @@ public class SimpleWebServer {
         return map;
     }
 
-    private static String toJson(Map<String, List<String>> map) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("{");
-        int i = 0;
-        for (Map.Entry<String, List<String>> entry : map.entrySet()) {
-            sb.append("\"").append(entry.getKey()).append("\":");
-            sb.append("[");
-            List<String> list = entry.getValue();
-            for (int j = 0; j < list.size(); j++) {
-                sb.append("\"").append(list.get(j)).append("\"");
-                if (j < list.size() - 1) sb.append(",");
-            }
-            sb.append("]");
-            if (i < map.size() - 1) sb.append(",");
-            i++;
-        }
-        sb.append("}");
-        return sb.toString();
+    interface JsonBody {
+        void write(JsonWriter json) throws Exception;
     }
 
-    private static String toJson(List<Map<String, Object>> list) {
-        StringBuilder sb = new StringBuilder();
-        sb.append("[");
-        for (int i = 0; i < list.size(); i++) {
-            sb.append("{");
-            Map<String, Object> map = list.get(i);
-            int j = 0;
-            for (Map.Entry<String, Object> entry : map.entrySet()) {
-                Object value = entry.getValue();
-                sb.append("\"").append(entry.getKey()).append("\":");
-                
-                if (value instanceof List) {
-                    List<?> l = (List<?>) value;
-                    sb.append("[");
-                    for (int k = 0; k < l.size(); k++) {
-                        sb.append("\"").append(l.get(k)).append("\"");
-                        if (k < l.size() - 1) sb.append(",");
-                    }
-                    sb.append("]");
-                } else {
-                    sb.append("\"").append(value).append("\"");
-                }
-                
-                if (j < map.size() - 1) sb.append(",");
-                j++;
-            }
-            sb.append("}");
-            if (i < list.size() - 1) sb.append(",");
-        }
-        sb.append("]");
-        return sb.toString();
+    // 200 with a chunked body written straight to the client as it is produced
+    private static void sendJson(HttpExchange t, JsonBody body) throws Exception {
+        t.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        t.sendResponseHeaders(200, 0);
+        JsonWriter json = new JsonWriter(t.getResponseBody());
+        body.write(json);
+        // Only a fully written body is terminated; see sendResponse for the failure path
+        json.close();
+    }
+
+    // Package-private so bench/ can measure it
+    static void writeSearchRow(JsonWriter json, PatientRecord r, String[] decrypted) throws IOException {
+        json.beginObject();
+        json.name("recordIndex").value(r.getRecordIndex());
+        json.name("patientName").value(r.getPatientName());
+        json.name("patientDob").value(r.getPatientDob() != null ? r.getPatientDob().toString() : "");
+        json.name("checkInDate").value(r.getCheckInDate() != null ? r.getCheckInDate().toString() : "");
+        json.name("doctorName").value(r.getDoctorName());
+        json.name("nurseName").value(r.getNurseName());
+        json.name("symptoms").value(decrypted[0]);
+        json.name("diagnosis").value(decrypted[1]);
+        json.endObject();
+    }
+
+    // Session for the request's Bearer token; null when there is none or it is not valid
+    private static String bearerSession(HttpExchange t) {
+        String auth = t.getRequestHeaders().getFirst("Authorization");
+        return auth != null && auth.startsWith("Bearer ") ? sessions.get(auth.substring(7)) : null;
+    }
+
+    private static String getRoleFromSession(String sessionVal) {
+        if (sessionVal == null) return null;
+        return sessionVal.contains(":") ? sessionVal.split(":")[1] : sessionVal;
     }
 
     private static String getRoleFromRequest(HttpExchange t) {
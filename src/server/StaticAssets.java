@@ -0,0 +1,313 @@
+package server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The static web root (src/web), held in memory and served with validators. Files are read once at
+ * startup and again whenever the directory changes, never per request.
+ *
+ *  - strong ETag (content hash) and Last-Modified; If-None-Match / If-Modified-Since answer 304
+ *  - text assets are gzipped once at load time; a precompressed "name.br" next to a file is served
+ *    as its brotli variant (the JDK has no brotli encoder)
+ *  - HTML is revalidated on every use (no-cache), everything else may be cached for -Dstatic.maxAge seconds
+ */
+class StaticAssets implements HttpHandler {
+
+    private static final long MAX_AGE_SECONDS = Long.getLong("static.maxAge", 3600);
+    // Gzip only pays off above a packet or so
+    private static final int MIN_COMPRESS_BYTES = 1024;
+    private static final long RELOAD_DEBOUNCE_MILLIS = 200;
+
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+            Map.entry("html", "text/html; charset=utf-8"),
+            Map.entry("css", "text/css; charset=utf-8"),
+            Map.entry("js", "text/javascript; charset=utf-8"),
+            Map.entry("json", "application/json; charset=utf-8"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("txt", "text/plain; charset=utf-8"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("woff2", "font/woff2"));
+
+    private final Path root;
+    // Replaced wholesale on reload, so a request always sees one consistent snapshot
+    private volatile Map<String, Asset> assets = Map.of();
+
+    StaticAssets(Path root) {
+        this.root = root;
+    }
+
+    static final class Asset {
+        final byte[] identity;
+        final byte[] gzip;      // null when not worth compressing
+        final byte[] brotli;    // null unless a .br file was supplied
+        final String etag;      // quoted; the encoded variants append -gz / -br inside the quotes
+        final long lastModified;
+        final String contentType;
+        final String cacheControl;
+
+        Asset(byte[] identity, byte[] gzip, byte[] brotli, String etag, long lastModified, String contentType, String cacheControl) {
+            this.identity = identity;
+            this.gzip = gzip;
+            this.brotli = brotli;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentType = contentType;
+            this.cacheControl = cacheControl;
+        }
+    }
+
+    int size() { return assets.size(); }
+
+    Asset get(String path) { return assets.get(path); }
+
+    // (Re)load every file under root; on failure the previous snapshot stays in service
+    synchronized void load() throws IOException {
+        Map<String, Asset> loaded = new HashMap<>();
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(root)) {
+            files = walk.filter(Files::isRegularFile).collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (name.endsWith(".br") || name.endsWith(".gz")) continue;   // variants, picked up with their base file
+            String path = "/" + root.relativize(file).toString().replace('\\', '/');
+            loaded.put(path, read(file));
+        }
+        assets = Map.copyOf(loaded);
+        System.out.println("Static assets loaded: " + loaded.size() + " file(s) from " + root);
+    }
+
+    // Reload on any change under root, on a daemon thread; nested directories are watched too
+    void watch() throws IOException {
+        WatchService watcher = FileSystems.getDefault().newWatchService();
+        register(watcher);
+        Thread t = new Thread(() -> {
+            try {
+                while (true) {
+                    WatchKey key = watcher.take();
+                    // Editors write in several steps; let them finish before reading
+                    Thread.sleep(RELOAD_DEBOUNCE_MILLIS);
+                    key.pollEvents();
+                    key.reset();
+                    WatchKey more;
+                    while ((more = watcher.poll()) != null) {
+                        more.pollEvents();
+                        more.reset();
+                    }
+                    try {
+                        register(watcher);
+                        load();
+                    } catch (IOException e) {
+                        System.out.println("⚠️ Static asset reload failed: " + e.getMessage());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "static-assets-watcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private void register(WatchService watcher) throws IOException {
+        List<Path> dirs;
+        try (Stream<Path> walk = Files.walk(root)) {
+            dirs = walk.filter(Files::isDirectory).collect(Collectors.toList());
+        }
+        // Registering an already-watched directory just returns its existing key
+        for (Path dir : dirs) {
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+        }
+    }
+
+    @Override
+    public void handle(HttpExchange t) throws IOException {
+        String method = t.getRequestMethod();
+        boolean head = "HEAD".equals(method);
+        if (!head && !"GET".equals(method)) {
+            t.getResponseHeaders().set("Allow", "GET, HEAD");
+            t.sendResponseHeaders(405, -1);
+            t.close();
+            return;
+        }
+
+        String path = t.getRequestURI().getPath();
+        if (path.equals("/")) path = "/index.html";
+        // Only files loaded from root can be named here, so there is nothing to traverse to
+        Asset asset = assets.get(path);
+        if (asset == null) {
+            byte[] body = "File Not Found".getBytes(StandardCharsets.UTF_8);
+            t.sendResponseHeaders(404, body.length);
+            try (OutputStream os = t.getResponseBody()) {
+                os.write(body);
+            }
+            return;
+        }
+
+        Headers req = t.getRequestHeaders();
+        String accept = req.getFirst("Accept-Encoding");
+        byte[] body = asset.identity;
+        String encoding = null;
+        String etag = asset.etag;
+        if (asset.brotli != null && accepts(accept, "br")) {
+            body = asset.brotli;
+            encoding = "br";
+            etag = variantTag(asset.etag, "br");
+        } else if (asset.gzip != null && accepts(accept, "gzip")) {
+            body = asset.gzip;
+            encoding = "gzip";
+            etag = variantTag(asset.etag, "gz");
+        }
+
+        Headers res = t.getResponseHeaders();
+        res.set("ETag", etag);
+        res.set("Last-Modified", httpDate(asset.lastModified));
+        res.set("Cache-Control", asset.cacheControl);
+        if (asset.gzip != null || asset.brotli != null) res.set("Vary", "Accept-Encoding");
+
+        if (notModified(req, asset, etag)) {
+            t.sendResponseHeaders(304, -1);
+            t.close();
+            return;
+        }
+
+        res.set("Content-Type", asset.contentType);
+        if (encoding != null) res.set("Content-Encoding", encoding);
+        if (head) {
+            res.set("Content-Length", String.valueOf(body.length));
+            t.sendResponseHeaders(200, -1);
+            t.close();
+            return;
+        }
+        t.sendResponseHeaders(200, body.length);
+        try (OutputStream os = t.getResponseBody()) {
+            os.write(body);
+        }
+    }
+
+    // If-None-Match wins over If-Modified-Since when both are sent (RFC 9110 13.2.2)
+    static boolean notModified(Headers req, Asset asset, String etag) {
+        String inm = req.getFirst("If-None-Match");
+        if (inm != null) {
+            for (String tag : inm.split(",")) {
+                String v = tag.trim();
+                if (v.startsWith("W/")) v = v.substring(2);
+                if (v.equals("*") || v.equals(etag)) return true;
+            }
+            return false;
+        }
+        String ims = req.getFirst("If-Modified-Since");
+        if (ims != null) {
+            try {
+                long since = ZonedDateTime.parse(ims, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+                return asset.lastModified <= since;
+            } catch (RuntimeException e) {
+                return false;   // Unparseable dates are ignored
+            }
+        }
+        return false;
+    }
+
+    // True if Accept-Encoding lists coding without q=0
+    static boolean accepts(String acceptEncoding, String coding) {
+        if (acceptEncoding == null) return false;
+        for (String item : acceptEncoding.split(",")) {
+            String[] params = item.split(";");
+            if (!params[0].trim().equalsIgnoreCase(coding)) continue;
+            for (int i = 1; i < params.length; i++) {
+                String p = params[i].trim();
+                if (p.startsWith("q=")) {
+                    try {
+                        return Double.parseDouble(p.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static String variantTag(String etag, String suffix) {
+        return etag.substring(0, etag.length() - 1) + "-" + suffix + "\"";
+    }
+
+    private static Asset read(Path file) throws IOException {
+        byte[] content = Files.readAllBytes(file);
+        String name = file.getFileName().toString();
+        String ext = name.lastIndexOf('.') >= 0 ? name.substring(name.lastIndexOf('.') + 1).toLowerCase(Locale.ROOT) : "";
+        String contentType = CONTENT_TYPES.getOrDefault(ext, "application/octet-stream");
+
+        byte[] gzip = null;
+        if (compressible(contentType) && content.length >= MIN_COMPRESS_BYTES) {
+            gzip = gzip(content);
+            if (gzip.length >= content.length) gzip = null;
+        }
+        Path br = file.resolveSibling(name + ".br");
+        byte[] brotli = Files.isRegularFile(br) ? Files.readAllBytes(br) : null;
+
+        // HTTP dates have one-second resolution; truncate so If-Modified-Since compares cleanly
+        long lastModified = Files.getLastModifiedTime(file).toMillis() / 1000 * 1000;
+        String cacheControl = contentType.startsWith("text/html") ? "no-cache" : "public, max-age=" + MAX_AGE_SECONDS;
+        return new Asset(content, gzip, brotli, etagOf(content), lastModified, contentType, cacheControl);
+    }
+
+    private static boolean compressible(String contentType) {
+        return contentType.startsWith("text/") || contentType.startsWith("application/json") || contentType.equals("image/svg+xml");
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+        try (GZIPOutputStream gz = new GZIPOutputStream(out)) {
+            gz.write(content);
+        }
+        return out.toByteArray();
+    }
+
+    private static String etagOf(byte[] content) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256").digest(content);
+            // 128 bits is plenty to tell versions of one file apart
+            return "\"" + Base64.getUrlEncoder().withoutPadding().encodeToString(hash).substring(0, 22) + "\"";
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    private static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.ofInstant(Instant.ofEpochMilli(millis), ZoneOffset.UTC));
+    }
+}
@@ -0,0 +1,67 @@
+package service;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * Keyed-HMAC term index over symptoms and diagnosis. Terms are normalised (lower case, letters and
+ * digits only, 3+ chars, minus common stop words) and each is stored as HMAC-SHA256(indexKey, term),
+ * so the database can match keywords without ever seeing them.
+ */
+public class BlindIndex {
+
+    private static final int MIN_TERM_LENGTH = 3;
+    private static final Set<String> STOP_WORDS = Set.of(
+            "and", "the", "for", "with", "not", "was", "are", "has", "have", "but", "from", "this", "that", "per");
+
+    private final SecretKey indexKey;
+
+    public BlindIndex(SecretKey indexKey) {
+        this.indexKey = indexKey;
+    }
+
+    // Distinct tokens for every term across the given texts (nulls ignored)
+    public Set<String> tokensFor(String... texts) throws Exception {
+        Set<String> tokens = new LinkedHashSet<>();
+        Mac mac = newMac();
+        for (String text : texts) {
+            for (String term : terms(text)) {
+                tokens.add(token(mac, term));
+            }
+        }
+        return tokens;
+    }
+
+    // Tokens for a keyword query; a record must contain all of them to match
+    public List<String> queryTokens(String query) throws Exception {
+        return new ArrayList<>(tokensFor(query));
+    }
+
+    static Set<String> terms(String text) {
+        Set<String> terms = new LinkedHashSet<>();
+        if (text == null) return terms;
+        for (String raw : text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{Nd}]+")) {
+            if (raw.length() >= MIN_TERM_LENGTH && !STOP_WORDS.contains(raw)) {
+                terms.add(raw);
+            }
+        }
+        return terms;
+    }
+
+    private Mac newMac() throws Exception {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(indexKey);
+        return mac;
+    }
+
+    private static String token(Mac mac, String term) {
+        return HexFormat.of().formatHex(mac.doFinal(term.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,42 @@
+package service;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Versioned header for AES field ciphertexts, so parameters can change without a flag day.
+ *
+ * Format: ["ZTE" (3)] [version (1)] [version-specific body]
+ *   v1 = [IV (12)] [AES-256-GCM ciphertext + tag], header authenticated as AAD
+ * Blobs with no header are the original bare [IV][ciphertext] layout and are still readable.
+ * Media uses SegmentedGcm, which has its own "ZTSG" header.
+ */
+public final class CipherEnvelope {
+
+    public static final byte VERSION_GCM = 1;
+    public static final byte CURRENT_VERSION = VERSION_GCM;
+
+    static final int HEADER_SIZE = 4;
+    private static final byte[] MAGIC = "ZTE".getBytes(StandardCharsets.US_ASCII);
+
+    private CipherEnvelope() {
+        // Prevent object creation (utility class)
+    }
+
+    public static byte[] header(byte version) {
+        return new byte[]{MAGIC[0], MAGIC[1], MAGIC[2], version};
+    }
+
+    public static boolean isEnvelope(byte[] data) {
+        return data != null && data.length > HEADER_SIZE
+                && data[0] == MAGIC[0] && data[1] == MAGIC[1] && data[2] == MAGIC[2];
+    }
+
+    // -1 for headerless legacy data
+    public static int version(byte[] data) {
+        return isEnvelope(data) ? data[3] : -1;
+    }
+
+    public static boolean isCurrent(byte[] data) {
+        return version(data) == CURRENT_VERSION;
+    }
+}
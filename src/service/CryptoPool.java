@@ -0,0 +1,82 @@
+package service;
+
+import util.CryptoRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import java.security.KeyFactory;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Per-thread JCA primitives for the crypto hot path. Cipher/KeyGenerator/KeyFactory.getInstance
+ * walk the provider list and allocate on every call; these are looked up once per thread and
+ * re-initialised by the caller for each use. Instances must not escape the calling thread.
+ */
+public final class CryptoPool {
+
+    public static final String AES_GCM = "AES/GCM/NoPadding";
+    public static final String RSA_OAEP = "RSA/ECB/OAEPWithSHA-256AndMGF1Padding";
+
+    private static final int AES_KEY_SIZE = 256;
+
+    private static final ThreadLocal<Cipher> AES_GCM_CIPHER = ThreadLocal.withInitial(() -> cipher(AES_GCM));
+    private static final ThreadLocal<Cipher> RSA_OAEP_CIPHER = ThreadLocal.withInitial(() -> cipher(RSA_OAEP));
+    private static final ThreadLocal<KeyFactory> RSA_KEY_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("RSA");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<KeyFactory> XDH_KEY_FACTORY = ThreadLocal.withInitial(() -> {
+        try {
+            return KeyFactory.getInstance("XDH");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<KeyGenerator> AES_KEY_GENERATOR = ThreadLocal.withInitial(() -> {
+        try {
+            KeyGenerator keyGen = KeyGenerator.getInstance("AES");
+            keyGen.init(AES_KEY_SIZE, CryptoRandom.get());
+            return keyGen;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private CryptoPool() {
+        // Prevent object creation (utility class)
+    }
+
+    // Caller must init() before use
+    public static Cipher aesGcm() {
+        return AES_GCM_CIPHER.get();
+    }
+
+    // Caller must init() before use
+    public static Cipher rsaOaep() {
+        return RSA_OAEP_CIPHER.get();
+    }
+
+    public static KeyFactory rsaKeyFactory() {
+        return RSA_KEY_FACTORY.get();
+    }
+
+    public static KeyFactory xdhKeyFactory() {
+        return XDH_KEY_FACTORY.get();
+    }
+
+    // Already initialised for 256-bit keys backed by the shared DRBG
+    public static KeyGenerator aesKeyGenerator() {
+        return AES_KEY_GENERATOR.get();
+    }
+
+    private static Cipher cipher(String transformation) {
+        try {
+            return Cipher.getInstance(transformation);
+        } catch (Exception e) {
+            throw new IllegalStateException("Cipher unavailable: " + transformation, e);
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package service;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of unwrapped AES data keys, keyed by (role, SHA-256 of the wrapped key).
+ * Lets repeat reads of the same record skip the RSA-OAEP unwrap. Raw key bytes are zeroed
+ * when an entry is evicted, expires or is invalidated.
+ */
+public class DataKeyCache {
+
+    private static final int DEFAULT_MAX_ENTRIES = 1024;
+    private static final long DEFAULT_TTL_MILLIS = 10 * 60 * 1000L;
+
+    private final int maxEntries;
+    private final long ttlMillis;
+
+    // Access-ordered so the eldest entry is the least recently used one
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public DataKeyCache() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+    }
+
+    public DataKeyCache(int maxEntries, long ttlMillis) {
+        if (maxEntries <= 0) throw new IllegalArgumentException("maxEntries must be positive");
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    // Returns the cached key, or null on miss/expiry
+    public SecretKey get(String role, byte[] wrappedKey) {
+        String id = cacheKey(role, wrappedKey);
+        long now = System.currentTimeMillis();
+        synchronized (entries) {
+            Entry e = entries.get(id);
+            if (e != null && e.expiresAt > now) {
+                hits.incrementAndGet();
+                return new SecretKeySpec(e.keyBytes, "AES");
+            }
+            if (e != null) {
+                entries.remove(id);
+                e.wipe();
+                evictions.incrementAndGet();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String role, byte[] wrappedKey, SecretKey key) {
+        String id = cacheKey(role, wrappedKey);
+        Entry fresh = new Entry(key.getEncoded(), System.currentTimeMillis() + ttlMillis);
+        synchronized (entries) {
+            Entry old = entries.put(id, fresh);
+            if (old != null) old.wipe();
+
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (entries.size() > maxEntries && it.hasNext()) {
+                Entry eldest = it.next().getValue();
+                it.remove();
+                eldest.wipe();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    // Drop the entry for this wrapped key under every role (called when a record is re-keyed)
+    public void invalidate(byte[] wrappedKey) {
+        if (wrappedKey == null || wrappedKey.length == 0) return;
+        String suffix = ":" + digest(wrappedKey);
+        synchronized (entries) {
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> e = it.next();
+                if (e.getKey().endsWith(suffix)) {
+                    it.remove();
+                    e.getValue().wipe();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (entries) {
+            for (Entry e : entries.values()) e.wipe();
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+    public long getEvictions() { return evictions.get(); }
+
+    public double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0.0 : (double) h / total;
+    }
+
+    private static String cacheKey(String role, byte[] wrappedKey) {
+        return role + ":" + digest(wrappedKey);
+    }
+
+    private static String digest(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (Exception e) {
+            throw new RuntimeException("SHA-256 hashing failed", e);
+        }
+    }
+
+    private static class Entry {
+        final byte[] keyBytes;
+        final long expiresAt;
+
+        Entry(byte[] keyBytes, long expiresAt) {
+            this.keyBytes = keyBytes;
+            this.expiresAt = expiresAt;
+        }
+
+        void wipe() {
+            Arrays.fill(keyBytes, (byte) 0);
+        }
+    }
+}
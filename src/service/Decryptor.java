@@ -1,9 +1,12 @@
 package service;
 
+import javax.crypto.AEADBadTagException;
 import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.security.PrivateKey;
 import java.util.Arrays;
@@ -18,9 +21,12 @@ public class Decryptor {
         this.rsaPrivateKey = rsaPrivateKey;
     }
 
-    // 1. Decrypt the AES Key using RSA Private Key
+    // 1. Decrypt the AES Key using RSA Private Key (or X25519, for keys wrapped with that scheme)
     public SecretKey decryptAESKey(byte[] encryptedAesKey) throws Exception {
-        Cipher rsa = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        if (X25519KeyWrap.isWrapped(encryptedAesKey)) {
+            return X25519KeyWrap.unwrap(encryptedAesKey, rsaPrivateKey);
+        }
+        Cipher rsa = CryptoPool.rsaOaep();
         rsa.init(Cipher.DECRYPT_MODE, rsaPrivateKey);
         byte[] aesKeyBytes = rsa.doFinal(encryptedAesKey);
         return new SecretKeySpec(aesKeyBytes, "AES");
@@ -32,15 +38,45 @@ public class Decryptor {
         return new String(decryptedBytes, StandardCharsets.UTF_8);
     }
 
-    // 3. Decrypt Data (Bytes) using AES Key
+    // 3. Decrypt Data (Bytes) using AES Key, dispatching on the envelope version
     public byte[] decryptBytes(byte[] encryptedDataWithIv, SecretKey aesKey) throws Exception {
+        if (CipherEnvelope.isEnvelope(encryptedDataWithIv)) {
+            try {
+                return decryptEnvelope(encryptedDataWithIv, aesKey);
+            } catch (AEADBadTagException e) {
+                // A legacy IV can start with the magic by chance (1 in 2^24); fall back to the bare format
+            }
+        } else if (SegmentedGcm.isSegmented(encryptedDataWithIv)) {
+            try (InputStream in = SegmentedGcm.decryptingStream(new ByteArrayInputStream(encryptedDataWithIv), aesKey)) {
+                return in.readAllBytes();
+            }
+        }
+        return decryptLegacy(encryptedDataWithIv, aesKey);
+    }
+
+    private byte[] decryptEnvelope(byte[] data, SecretKey aesKey) throws Exception {
+        int version = CipherEnvelope.version(data);
+        if (version != CipherEnvelope.VERSION_GCM) {
+            throw new AEADBadTagException("Unsupported envelope version " + version);
+        }
+        int offset = CipherEnvelope.HEADER_SIZE;
+        byte[] iv = Arrays.copyOfRange(data, offset, offset + GCM_IV_SIZE);
+
+        Cipher aes = CryptoPool.aesGcm();
+        aes.init(Cipher.DECRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_SIZE, iv));
+        aes.updateAAD(data, 0, CipherEnvelope.HEADER_SIZE);
+        return aes.doFinal(data, offset + GCM_IV_SIZE, data.length - offset - GCM_IV_SIZE);
+    }
+
+    // Original headerless format: [IV (12 bytes)] [Encrypted Data]
+    private byte[] decryptLegacy(byte[] encryptedDataWithIv, SecretKey aesKey) throws Exception {
         // Extract IV
         byte[] iv = Arrays.copyOfRange(encryptedDataWithIv, 0, GCM_IV_SIZE);
         // Extract Encrypted Data
         byte[] encryptedBytes = Arrays.copyOfRange(encryptedDataWithIv, GCM_IV_SIZE, encryptedDataWithIv.length);
 
         // AES-GCM Decrypt
-        Cipher aes = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher aes = CryptoPool.aesGcm();
         aes.init(Cipher.DECRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_SIZE, iv));
         return aes.doFinal(encryptedBytes);
     }
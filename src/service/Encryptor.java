@@ -1,5 +1,7 @@
 package service;
 
+import util.CryptoRandom;
+
 import javax.crypto.*;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -10,7 +12,6 @@ import java.util.Base64;
 
 public class Encryptor {
 
-    private static final int AES_KEY_SIZE = 256;
     private static final int GCM_IV_SIZE = 12;
     private static final int GCM_TAG_SIZE = 128;
 
@@ -22,73 +23,67 @@ public class Encryptor {
 
     // Generate a new AES Key
     public SecretKey generateAESKey() throws Exception {
-        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-        keyGen.init(AES_KEY_SIZE);
-        return keyGen.generateKey();
+        return CryptoPool.aesKeyGenerator().generateKey();
+    }
+
+    // Wrap the AES Key with whichever scheme the public key belongs to (RSA-OAEP or X25519)
+    public byte[] wrapAESKey(SecretKey aesKey) throws Exception {
+        if (X25519KeyWrap.supports(rsaPublicKey)) {
+            return X25519KeyWrap.wrap(aesKey, rsaPublicKey);
+        }
+        return encryptAESKeyWithRSA(aesKey);
     }
 
     // Encrypt the AES Key using RSA
     public byte[] encryptAESKeyWithRSA(SecretKey aesKey) throws Exception {
-        Cipher rsa = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        Cipher rsa = CryptoPool.rsaOaep();
         rsa.init(Cipher.ENCRYPT_MODE, rsaPublicKey);
         return rsa.doFinal(aesKey.getEncoded());
     }
 
     // Encrypt data using an existing AES Key
     public byte[] encryptWithAES(String plainText, SecretKey aesKey) throws Exception {
-        // Generate random IV
-        byte[] iv = new byte[GCM_IV_SIZE];
-        SecureRandom.getInstanceStrong().nextBytes(iv);
-
-        // AES-GCM encrypt
-        Cipher aes = Cipher.getInstance("AES/GCM/NoPadding");
-        aes.init(Cipher.ENCRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_SIZE, iv));
-        byte[] encryptedBytes = aes.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
-
-        // Combine IV + Encrypted Data (we need IV to decrypt!)
-        // Format: [IV (12 bytes)] [Encrypted Data]
-        byte[] result = new byte[GCM_IV_SIZE + encryptedBytes.length];
-        System.arraycopy(iv, 0, result, 0, GCM_IV_SIZE);
-        System.arraycopy(encryptedBytes, 0, result, GCM_IV_SIZE, encryptedBytes.length);
-        return result;
+        return encryptBytesWithAES(plainText.getBytes(StandardCharsets.UTF_8), aesKey);
     }
 
-    // Encrypt raw bytes (for images/videos)
+    // Encrypt raw bytes
+    // Format: [CipherEnvelope header (4 bytes)] [IV (12 bytes)] [Encrypted Data]
     public byte[] encryptBytesWithAES(byte[] data, SecretKey aesKey) throws Exception {
+        byte[] header = CipherEnvelope.header(CipherEnvelope.VERSION_GCM);
+
         // Generate random IV
         byte[] iv = new byte[GCM_IV_SIZE];
-        SecureRandom.getInstanceStrong().nextBytes(iv);
+        CryptoRandom.nextBytes(iv);
 
-        // AES-GCM encrypt
-        Cipher aes = Cipher.getInstance("AES/GCM/NoPadding");
+        // AES-GCM encrypt, binding the header so the version cannot be swapped
+        Cipher aes = CryptoPool.aesGcm();
         aes.init(Cipher.ENCRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_SIZE, iv));
+        aes.updateAAD(header);
         byte[] encryptedBytes = aes.doFinal(data);
 
-        // Combine IV + Encrypted Data
-        byte[] result = new byte[GCM_IV_SIZE + encryptedBytes.length];
-        System.arraycopy(iv, 0, result, 0, GCM_IV_SIZE);
-        System.arraycopy(encryptedBytes, 0, result, GCM_IV_SIZE, encryptedBytes.length);
+        byte[] result = new byte[header.length + GCM_IV_SIZE + encryptedBytes.length];
+        System.arraycopy(header, 0, result, 0, header.length);
+        System.arraycopy(iv, 0, result, header.length, GCM_IV_SIZE);
+        System.arraycopy(encryptedBytes, 0, result, header.length + GCM_IV_SIZE, encryptedBytes.length);
         return result;
     }
 
     // Encrypt a single string (generates new key)
     public EncryptedData encrypt(String plainText) throws Exception {
         // 1️⃣ Generate AES key
-        KeyGenerator keyGen = KeyGenerator.getInstance("AES");
-        keyGen.init(AES_KEY_SIZE);
-        SecretKey aesKey = keyGen.generateKey();
+        SecretKey aesKey = CryptoPool.aesKeyGenerator().generateKey();
 
         // 2️⃣ Generate random IV
         byte[] iv = new byte[GCM_IV_SIZE];
-        SecureRandom.getInstanceStrong().nextBytes(iv);
+        CryptoRandom.nextBytes(iv);
 
         // 3️⃣ AES-GCM encrypt
-        Cipher aes = Cipher.getInstance("AES/GCM/NoPadding");
+        Cipher aes = CryptoPool.aesGcm();
         aes.init(Cipher.ENCRYPT_MODE, aesKey, new GCMParameterSpec(GCM_TAG_SIZE, iv));
         byte[] encryptedData = aes.doFinal(plainText.getBytes(StandardCharsets.UTF_8));
 
         // 4️⃣ Encrypt AES key with RSA
-        Cipher rsa = Cipher.getInstance("RSA/ECB/OAEPWithSHA-256AndMGF1Padding");
+        Cipher rsa = CryptoPool.rsaOaep();
         rsa.init(Cipher.ENCRYPT_MODE, rsaPublicKey);
         byte[] encryptedAesKey = rsa.doFinal(aesKey.getEncoded());
 
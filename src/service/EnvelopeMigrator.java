@@ -0,0 +1,227 @@
+package service;
+
+import model.PatientRecord;
+import model.PatientRecord.Part;
+import repository.BatchResult;
+import repository.HospitalRepository;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Background job that walks Hospital_Records in record_index order and rewrites rows still in an
+ * old ciphertext format (see PatientService.upgradeCiphertexts). Progress is checkpointed to disk
+ * after every batch so a restart resumes where it stopped.
+ *
+ * The scan reads text, wrapped keys and only the header bytes of the media archives; a row's
+ * archives are fetched only when a header shows the legacy format. Writes are conditional on the
+ * row still holding what was read, so an edit or upload that lands meanwhile is never overwritten.
+ * Rows that were skipped that way or failed are kept in the checkpoint as pending and retried once
+ * the scan reaches the end, and again on every later run until they go through.
+ *
+ * It also moves media archives still held in the old per-row columns into the repository's chunk
+ * storage (HospitalRepository.relocateLegacyMedia), batch by batch; that copies bytes unchanged.
+ *
+ * Throttling, so it can run during business hours:
+ *  - maxRowsPerSecond caps DB reads/writes (I/O budget)
+ *  - cpuDuty is the fraction of wall time the job may spend working; it sleeps for the rest
+ */
+public class EnvelopeMigrator implements Runnable {
+
+    private static final Path DEFAULT_CHECKPOINT = Paths.get("migration", "envelope.checkpoint");
+
+    private final HospitalRepository repository;
+    private final PatientService patientService;
+    private final Path checkpoint;
+    private final int batchSize;
+    private final int maxRowsPerSecond;
+    private final double cpuDuty;
+
+    private volatile boolean stopped;
+    private volatile long scanned;
+    private volatile long migrated;
+    private volatile long failed;
+    private volatile long skipped;
+    private volatile long relocated;
+
+    public EnvelopeMigrator(HospitalRepository repository, PatientService patientService) {
+        this(repository, patientService, DEFAULT_CHECKPOINT,
+                Integer.getInteger("migrate.batchSize", 100),
+                Integer.getInteger("migrate.maxRowsPerSecond", 200),
+                Double.parseDouble(System.getProperty("migrate.cpuDuty", "0.25")));
+    }
+
+    public EnvelopeMigrator(HospitalRepository repository, PatientService patientService, Path checkpoint,
+                            int batchSize, int maxRowsPerSecond, double cpuDuty) {
+        if (batchSize <= 0 || maxRowsPerSecond <= 0 || cpuDuty <= 0 || cpuDuty > 1) {
+            throw new IllegalArgumentException("Invalid migrator budget");
+        }
+        this.repository = repository;
+        this.patientService = patientService;
+        this.checkpoint = checkpoint;
+        this.batchSize = batchSize;
+        this.maxRowsPerSecond = maxRowsPerSecond;
+        this.cpuDuty = cpuDuty;
+    }
+
+    public Thread start() {
+        Thread t = new Thread(this, "envelope-migrator");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+        return t;
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    public long getScanned() { return scanned; }
+    public long getMigrated() { return migrated; }
+    public long getFailed() { return failed; }
+    public long getSkipped() { return skipped; }
+    public long getRelocated() { return relocated; }
+
+    @Override
+    public void run() {
+        try {
+            NavigableSet<Integer> pending = new TreeSet<>();
+            int lastIndex = readCheckpoint(pending);
+            System.out.println("🔁 Envelope migration starting after record " + lastIndex
+                    + (pending.isEmpty() ? "" : " (" + pending.size() + " earlier rows to retry)"));
+
+            while (!stopped) {
+                long batchStart = System.nanoTime();
+                List<PatientRecord> batch = repository.scanAfter(lastIndex, batchSize, SegmentedGcm.HEADER_SIZE);
+                if (batch.isEmpty()) break;
+
+                migrateBatch(batch, pending);
+                lastIndex = batch.get(batch.size() - 1).getRecordIndex();
+                writeCheckpoint(lastIndex, pending);
+
+                throttle(System.nanoTime() - batchStart, batch.size());
+            }
+            if (!stopped && !pending.isEmpty()) {
+                retryPending(lastIndex, pending);
+            }
+            System.out.println("✅ Envelope migration " + (stopped ? "paused" : "finished") + " at record " + lastIndex
+                    + " (scanned " + scanned + ", migrated " + migrated + ", failed " + failed + ", skipped " + skipped
+                    + ", relocated " + relocated + ", " + pending.size() + " pending for the next run)");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            System.out.println("⚠️ Envelope migration aborted: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    // One pass over the rows that failed or were skipped, this run or earlier; those that still do
+    // not go through stay pending. Each is re-read through the same header-only scan as the main pass.
+    private void retryPending(int lastIndex, NavigableSet<Integer> pending) throws Exception {
+        System.out.println("🔁 Envelope migration retrying " + pending.size() + " skipped or failed rows");
+        NavigableSet<Integer> retry = new TreeSet<>(pending);
+        Iterator<Integer> it = retry.iterator();
+        while (it.hasNext() && !stopped) {
+            long batchStart = System.nanoTime();
+            List<PatientRecord> batch = new ArrayList<>();
+            while (it.hasNext() && batch.size() < batchSize) {
+                int recordIndex = it.next();
+                pending.remove(recordIndex);
+                List<PatientRecord> row = repository.scanAfter(recordIndex - 1, 1, SegmentedGcm.HEADER_SIZE);
+                // Gone since (deleted): nothing left to migrate
+                if (!row.isEmpty() && row.get(0).getRecordIndex() == recordIndex) batch.add(row.get(0));
+            }
+            migrateBatch(batch, pending);
+            writeCheckpoint(lastIndex, pending);
+            throttle(System.nanoTime() - batchStart, Math.max(1, batch.size()));
+        }
+    }
+
+    // Upgrade and conditionally write one batch; rows that fail or lose the race are added to pending
+    private void migrateBatch(List<PatientRecord> batch, NavigableSet<Integer> pending) throws Exception {
+        List<PatientRecord> upgraded = new ArrayList<>();
+        List<PatientRecord> asRead = new ArrayList<>();
+        for (PatientRecord record : batch) {
+            try {
+                PatientRecord row = record;
+                if (patientService.hasStaleMedia(record)) {
+                    row = repository.getById(record.getRecordIndex(), EnumSet.of(Part.TEXT, Part.KEYS, Part.MEDIA));
+                }
+                PatientRecord before = row == null ? null : row.copy();
+                if (row != null && patientService.upgradeCiphertexts(row)) {
+                    upgraded.add(row);
+                    asRead.add(before);
+                }
+            } catch (Exception e) {
+                failed++;
+                pending.add(record.getRecordIndex());
+                System.out.println("Failed to migrate record " + record.getRecordIndex() + ": " + e.getMessage());
+            }
+            scanned++;
+        }
+        // One transaction for the whole batch; rows that fail are reported individually
+        if (!upgraded.isEmpty()) {
+            BatchResult result = repository.updateAllIfUnchanged(upgraded, asRead, batchSize);
+            migrated += result.getWritten();
+            failed += result.getFailures().size();
+            skipped += result.getSkipped().size();
+            result.getFailures().forEach((record, e) -> {
+                pending.add(record.getRecordIndex());
+                System.out.println("Failed to migrate record " + record.getRecordIndex() + ": " + e.getMessage());
+            });
+            for (PatientRecord record : result.getSkipped()) {
+                pending.add(record.getRecordIndex());
+            }
+        }
+        // Rows just rewritten are already in chunk storage; this moves the rest
+        List<Integer> indexes = batch.stream().map(PatientRecord::getRecordIndex).collect(Collectors.toList());
+        try {
+            relocated += repository.relocateLegacyMedia(indexes);
+        } catch (SQLException e) {
+            failed++;
+            pending.addAll(indexes);
+            System.out.println("Failed to relocate media of records " + indexes + ": " + e.getMessage());
+        }
+    }
+
+    private void throttle(long workNanos, int rows) throws InterruptedException {
+        // CPU budget: idle long enough that work is only cpuDuty of wall time
+        long cpuSleepMillis = (long) (workNanos / 1_000_000.0 * (1 - cpuDuty) / cpuDuty);
+        // I/O budget: never exceed maxRowsPerSecond averaged over the batch
+        long ioSleepMillis = rows * 1000L / maxRowsPerSecond - workNanos / 1_000_000;
+        long sleep = Math.max(cpuSleepMillis, ioSleepMillis);
+        if (sleep > 0) Thread.sleep(sleep);
+    }
+
+    // Line 1: last record_index scanned. Line 2 (optional): comma-separated pending record indexes
+    private int readCheckpoint(NavigableSet<Integer> pending) throws IOException {
+        if (!Files.exists(checkpoint)) return 0;
+        List<String> lines = Files.readAllLines(checkpoint);
+        if (lines.size() > 1) {
+            for (String index : lines.get(1).split(",")) {
+                if (!index.isBlank()) pending.add(Integer.parseInt(index.trim()));
+            }
+        }
+        String text = lines.isEmpty() ? "" : lines.get(0).trim();
+        return text.isEmpty() ? 0 : Integer.parseInt(text);
+    }
+
+    private void writeCheckpoint(int lastIndex, NavigableSet<Integer> pending) throws IOException {
+        if (checkpoint.getParent() != null) Files.createDirectories(checkpoint.getParent());
+        Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        String text = lastIndex + "\n" + pending.stream().map(String::valueOf).collect(Collectors.joining(","));
+        Files.writeString(tmp, text);
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,169 @@
+package service;
+
+import model.PatientRecord;
+import repository.HospitalRepository;
+import repository.MySQLHospitalRepository;
+import repository.WrappedKeyUpdate;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Rotates a role's keypair by re-wrapping each record's AES data key: unwrap with the old private
+ * key, wrap with the new public key, and write back only the key columns. Payloads are untouched.
+ *
+ * Rows are read in record_index batches and re-wrapped by a worker pool. Batches complete in order,
+ * and the checkpoint only advances past a batch once every earlier batch is written, so a restart
+ * resumes safely. Rows whose key no longer opens with the old private key (already rotated) are skipped,
+ * and so are rows whose wrapped key changed between the read and the write (e.g. a concurrent upload
+ * gave the record a new data key): only the rotated role's column is written, and only over the value read.
+ *
+ * Usage: java -cp bin:lib/* service.KeyRotationJob <doctor|nurse> <old private key> <new public key> [x25519]
+ */
+public class KeyRotationJob {
+
+    private final HospitalRepository repository;
+    private final boolean isDoctor;
+    private final PrivateKey oldPrivateKey;
+    private final PublicKey newPublicKey;
+    private final int threads;
+    private final int batchSize;
+    private final Path checkpoint;
+
+    private final AtomicLong rotated = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+
+    public KeyRotationJob(HospitalRepository repository, boolean isDoctor, PrivateKey oldPrivateKey, PublicKey newPublicKey,
+                          int threads, int batchSize, Path checkpoint) {
+        this.repository = repository;
+        this.isDoctor = isDoctor;
+        this.oldPrivateKey = oldPrivateKey;
+        this.newPublicKey = newPublicKey;
+        this.threads = threads;
+        this.batchSize = batchSize;
+        this.checkpoint = checkpoint;
+    }
+
+    public long getRotated() { return rotated.get(); }
+    public long getSkipped() { return skipped.get(); }
+
+    public void run() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        // Bounded window of in-flight batches, completed strictly in submission order
+        Deque<Future<Integer>> inFlight = new ArrayDeque<>();
+        long start = System.nanoTime();
+        int lastRead = readCheckpoint();
+        System.out.println("🔑 Rotating " + (isDoctor ? "doctor" : "nurse") + " keys after record " + lastRead);
+
+        try {
+            while (true) {
+                List<PatientRecord> batch = repository.scanWrappedKeysAfter(lastRead, batchSize);
+                if (batch.isEmpty()) break;
+                lastRead = batch.get(batch.size() - 1).getRecordIndex();
+                inFlight.addLast(pool.submit(() -> rewrap(batch)));
+
+                if (inFlight.size() >= threads * 2) {
+                    completeOldest(inFlight, start);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                completeOldest(inFlight, start);
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        System.out.println("✅ Key rotation finished: " + rotated.get() + " rotated, " + skipped.get() + " skipped, "
+                + String.format("%.0f", rate(start)) + " rows/s");
+    }
+
+    // Returns the last record_index of the batch once it is written
+    private int rewrap(List<PatientRecord> batch) throws Exception {
+        Decryptor decryptor = new Decryptor(oldPrivateKey);
+        Encryptor encryptor = new Encryptor(newPublicKey);
+        List<WrappedKeyUpdate> changed = new ArrayList<>(batch.size());
+
+        for (PatientRecord record : batch) {
+            byte[] wrapped = isDoctor ? record.getDoctorEncryptedAesKey() : record.getNurseEncryptedAesKey();
+            if (wrapped == null || wrapped.length == 0) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            SecretKey aesKey;
+            try {
+                aesKey = decryptor.decryptAESKey(wrapped);
+            } catch (Exception e) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            changed.add(new WrappedKeyUpdate(record.getRecordIndex(), wrapped, encryptor.wrapAESKey(aesKey)));
+        }
+
+        if (!changed.isEmpty()) {
+            int written = repository.updateWrappedKeys(isDoctor, changed);
+            rotated.addAndGet(written);
+            skipped.addAndGet(changed.size() - written);
+        }
+        return batch.get(batch.size() - 1).getRecordIndex();
+    }
+
+    private void completeOldest(Deque<Future<Integer>> inFlight, long start) throws Exception {
+        int lastIndex = inFlight.removeFirst().get();
+        writeCheckpoint(lastIndex);
+        System.out.println("   ...through record " + lastIndex + " (" + rotated.get() + " rotated, "
+                + String.format("%.0f", rate(start)) + " rows/s)");
+    }
+
+    private double rate(long start) {
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        return seconds == 0 ? 0 : (rotated.get() + skipped.get()) / seconds;
+    }
+
+    private int readCheckpoint() throws IOException {
+        if (!Files.exists(checkpoint)) return 0;
+        String text = Files.readString(checkpoint).trim();
+        return text.isEmpty() ? 0 : Integer.parseInt(text);
+    }
+
+    private void writeCheckpoint(int lastIndex) throws IOException {
+        if (checkpoint.getParent() != null) Files.createDirectories(checkpoint.getParent());
+        Path tmp = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.writeString(tmp, Integer.toString(lastIndex));
+        Files.move(tmp, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println("Usage: KeyRotationJob <doctor|nurse> <old private key> <new public key> [x25519]");
+            return;
+        }
+        try {
+            boolean isDoctor = "doctor".equalsIgnoreCase(args[0]);
+            boolean newIsX25519 = args.length > 3 && "x25519".equalsIgnoreCase(args[3]);
+
+            KeyService keyService = new KeyService();
+            PrivateKey oldKey = keyService.loadPrivateKey(args[1]);
+            PublicKey newKey = newIsX25519 ? keyService.loadX25519PublicKey(args[2]) : keyService.loadPublicKey(args[2]);
+
+            new KeyRotationJob(new MySQLHospitalRepository(), isDoctor, oldKey, newKey,
+                    Integer.getInteger("rotate.threads", Runtime.getRuntime().availableProcessors()),
+                    Integer.getInteger("rotate.batchSize", 500),
+                    Paths.get("migration", "rotate-" + args[0].toLowerCase() + ".checkpoint")).run();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,188 @@
+package service;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * One decrypted media archive, read through its zip central directory so a single file (or a byte
+ * range of it) can be served without decrypting or inflating the files around it. Only the archive
+ * tail, the directory, and the segments covering the requested entry are fetched and decrypted.
+ *
+ * Obtain one from PatientService.openMediaArchive.
+ */
+public class MediaArchive {
+
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CEN_SIGNATURE = 0x02014b50;
+    private static final int LOC_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CEN_SIZE = 46;
+    private static final int LOC_SIZE = 30;
+    private static final int MAX_COMMENT = 0xffff;
+
+    public static class Item {
+        private final int index;
+        private final String name;
+        private final long size;
+        private final long compressedSize;
+        private final int method;
+        private final long localHeaderOffset;
+
+        Item(int index, String name, long size, long compressedSize, int method, long localHeaderOffset) {
+            this.index = index;
+            this.name = name;
+            this.size = size;
+            this.compressedSize = compressedSize;
+            this.method = method;
+            this.localHeaderOffset = localHeaderOffset;
+        }
+
+        public int getIndex() { return index; }
+        public String getName() { return name; }
+        public long getSize() { return size; }
+        public String getContentType() { return MediaService.contentTypeOf(name); }
+    }
+
+    private final SegmentedGcm.RandomAccess plain;
+    private final List<Item> items;
+
+    private MediaArchive(SegmentedGcm.RandomAccess plain, List<Item> items) {
+        this.plain = plain;
+        this.items = items;
+    }
+
+    static MediaArchive open(SegmentedGcm.RandomAccess plain) throws IOException {
+        return new MediaArchive(plain, readDirectory(plain));
+    }
+
+    public List<Item> getItems() { return items; }
+
+    // Bytes [offset, offset + length) of one file, clipped to its end
+    public InputStream openItem(Item item, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0 || offset > item.size) throw new IOException("Range outside media item");
+        long len = Math.min(length, item.size - offset);
+
+        ByteBuffer loc = read(item.localHeaderOffset, LOC_SIZE);
+        if (loc.getInt(0) != LOC_SIGNATURE) throw new IOException("Corrupt media archive entry");
+        long dataStart = item.localHeaderOffset + LOC_SIZE + (loc.getShort(26) & 0xffff) + (loc.getShort(28) & 0xffff);
+
+        if (item.method == ZipEntry.STORED) {
+            return plain.open(dataStart + offset, len);
+        }
+        if (item.method != ZipEntry.DEFLATED) throw new IOException("Unsupported compression method " + item.method);
+
+        // Only archives written before entries were STORED get here (segmented ones the migrator
+        // did not rewrite). Deflate has no random access: inflate from the start and discard up to offset.
+        Inflater inflater = new Inflater(true);
+        InputStream in = new InflaterInputStream(plain.open(dataStart, item.compressedSize), inflater) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inflater.end();
+                }
+            }
+        };
+        try {
+            in.skipNBytes(offset);
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+        return limit(in, len);
+    }
+
+    private static List<Item> readDirectory(SegmentedGcm.RandomAccess plain) throws IOException {
+        long length = plain.length();
+        if (length == 0) return Collections.emptyList();
+        if (length < EOCD_SIZE) throw new IOException("Corrupt media archive");
+
+        // The end record sits in the last 22 bytes unless the archive has a comment; scan back for it
+        int tailSize = (int) Math.min(length, EOCD_SIZE + MAX_COMMENT);
+        ByteBuffer tail = read(plain, length - tailSize, tailSize);
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) throw new IOException("Corrupt media archive: no central directory");
+
+        int count = tail.getShort(eocd + 10) & 0xffff;
+        long cenSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long cenOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (count == 0xffff || cenSize == 0xffffffffL || cenOffset == 0xffffffffL) {
+            throw new IOException("ZIP64 media archives are not supported");
+        }
+        if (cenOffset + cenSize > length || cenSize > Integer.MAX_VALUE) throw new IOException("Corrupt media archive");
+
+        ByteBuffer cen = read(plain, cenOffset, (int) cenSize);
+        List<Item> items = new ArrayList<>(count);
+        int pos = 0;
+        for (int i = 0; i < count; i++) {
+            if (pos + CEN_SIZE > cenSize || cen.getInt(pos) != CEN_SIGNATURE) throw new IOException("Corrupt media archive directory");
+            int method = cen.getShort(pos + 10) & 0xffff;
+            long compressed = cen.getInt(pos + 20) & 0xffffffffL;
+            long size = cen.getInt(pos + 24) & 0xffffffffL;
+            int nameLen = cen.getShort(pos + 28) & 0xffff;
+            int extraLen = cen.getShort(pos + 30) & 0xffff;
+            int commentLen = cen.getShort(pos + 32) & 0xffff;
+            long localOffset = cen.getInt(pos + 42) & 0xffffffffL;
+            if (compressed == 0xffffffffL || size == 0xffffffffL || localOffset == 0xffffffffL) {
+                throw new IOException("ZIP64 media archives are not supported");
+            }
+            if (pos + CEN_SIZE + nameLen > cenSize) throw new IOException("Corrupt media archive directory");
+            String name = new String(cen.array(), pos + CEN_SIZE, nameLen, StandardCharsets.UTF_8);
+            items.add(new Item(i, name, size, compressed, method, localOffset));
+            pos += CEN_SIZE + nameLen + extraLen + commentLen;
+        }
+        return Collections.unmodifiableList(items);
+    }
+
+    private ByteBuffer read(long offset, int len) throws IOException {
+        return read(plain, offset, len);
+    }
+
+    private static ByteBuffer read(SegmentedGcm.RandomAccess plain, long offset, int len) throws IOException {
+        byte[] bytes;
+        try (InputStream in = plain.open(offset, len)) {
+            bytes = in.readNBytes(len);
+        }
+        if (bytes.length != len) throw new IOException("Corrupt media archive");
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static InputStream limit(InputStream in, long limit) {
+        return new FilterInputStream(in) {
+            private long remaining = limit;
+
+            @Override
+            public int read() throws IOException {
+                if (remaining == 0) return -1;
+                int b = super.read();
+                if (b != -1) remaining--;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (remaining == 0) return -1;
+                int n = super.read(b, off, (int) Math.min(len, remaining));
+                if (n > 0) remaining -= n;
+                return n;
+            }
+        };
+    }
+}
@@ -1,16 +1,23 @@
 package service;
 
+import model.PatientRecord.MediaKind;
+
 import javax.crypto.SecretKey;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
@@ -31,23 +38,21 @@ public class MediaService {
         try {
             for (Path file : filesToProcess) {
                 if (!Files.exists(file)) continue;
-                String fileName = file.getFileName().toString().toLowerCase();
-                if (fileName.endsWith(".jpg") || fileName.endsWith(".jpeg") || fileName.endsWith(".png")) {
+                MediaKind kind = kindOf(file.getFileName().toString());
+                if (kind == MediaKind.IMAGES) {
                     images.add(file);
-                } else if (fileName.endsWith(".mp4") || fileName.endsWith(".avi")) {
+                } else if (kind == MediaKind.VIDEOS) {
                     videos.add(file);
                 }
                 result.processedFiles.add(file);
             }
 
             if (!images.isEmpty()) {
-                byte[] zippedImages = zipFiles(images);
-                result.imageBytes = encryptor.encryptBytesWithAES(zippedImages, aesKey);
+                result.imageBytes = zipAndEncrypt(images, aesKey);
             }
             
             if (!videos.isEmpty()) {
-                byte[] zippedVideos = zipFiles(videos);
-                result.videoBytes = encryptor.encryptBytesWithAES(zippedVideos, aesKey);
+                result.videoBytes = zipAndEncrypt(videos, aesKey);
             }
 
         } catch (Exception e) {
@@ -57,22 +62,90 @@ public class MediaService {
         return result;
     }
 
-    private byte[] zipFiles(List<Path> files) throws IOException {
+    // Which archive a file belongs in, by extension; null if it is not supported media
+    static MediaKind kindOf(String fileName) {
+        String name = fileName.toLowerCase();
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg") || name.endsWith(".png")) return MediaKind.IMAGES;
+        if (name.endsWith(".mp4") || name.endsWith(".avi")) return MediaKind.VIDEOS;
+        return null;
+    }
+
+    static String contentTypeOf(String fileName) {
+        String name = fileName.toLowerCase();
+        if (name.endsWith(".jpg") || name.endsWith(".jpeg")) return "image/jpeg";
+        if (name.endsWith(".png")) return "image/png";
+        if (name.endsWith(".mp4")) return "video/mp4";
+        if (name.endsWith(".avi")) return "video/x-msvideo";
+        return "application/octet-stream";
+    }
+
+    // Zip straight into the segmented AES-GCM stream, so no plaintext archive is held in memory
+    private byte[] zipAndEncrypt(List<Path> files, SecretKey aesKey) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        try (ZipOutputStream zos = new ZipOutputStream(baos)) {
-            for (Path file : files) {
-                ZipEntry entry = new ZipEntry(file.getFileName().toString());
-                zos.putNextEntry(entry);
-                Files.copy(file, zos);
-                zos.closeEntry();
+        try (OutputStream enc = SegmentedGcm.encryptingStream(baos, aesKey)) {
+            zipFiles(files, enc);
+        }
+        return baos.toByteArray();
+    }
+
+    public void zipFiles(List<Path> files, OutputStream out) throws IOException {
+        ZipOutputStream zos = new ZipOutputStream(out);
+        for (Path file : files) {
+            // First pass for the CRC that a STORED local header needs, second to copy
+            CRC32 crc = new CRC32();
+            long size;
+            try (InputStream in = new CheckedInputStream(Files.newInputStream(file), crc)) {
+                size = in.transferTo(OutputStream.nullOutputStream());
+            }
+            try (InputStream in = Files.newInputStream(file)) {
+                putStored(zos, file.getFileName().toString(), size, crc.getValue(), in);
+            }
+        }
+        zos.finish();
+    }
+
+    // Images and video are already compressed, so entries are STORED rather than deflated: a byte
+    // range of a file is then a plain copy of the archive (MediaArchive.openItem) and seeking into a
+    // video decrypts only the segments it needs. STORED needs size and CRC in the local header.
+    static void putStored(ZipOutputStream zos, String name, long size, long crc, InputStream content) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        entry.setMethod(ZipEntry.STORED);
+        entry.setSize(size);
+        entry.setCompressedSize(size);
+        entry.setCrc(crc);
+        zos.putNextEntry(entry);
+        content.transferTo(zos);
+        // Throws if the content did not match the size or CRC
+        zos.closeEntry();
+    }
+
+    // Same archive with every entry STORED; for legacy archives being rewritten anyway
+    static byte[] storeEntries(byte[] zipBytes) throws IOException {
+        // Anything that does not open with a local file header is left exactly as it was
+        if (zipBytes.length < 4 || zipBytes[0] != 'P' || zipBytes[1] != 'K' || zipBytes[2] != 3 || zipBytes[3] != 4) {
+            return zipBytes;
+        }
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(zipBytes.length + 1024);
+        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipBytes));
+             ZipOutputStream zos = new ZipOutputStream(baos)) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                byte[] data = zis.readAllBytes();
+                CRC32 crc = new CRC32();
+                crc.update(data);
+                putStored(zos, entry.getName(), data.length, crc.getValue(), new ByteArrayInputStream(data));
             }
         }
         return baos.toByteArray();
     }
 
     public Map<String, byte[]> unzipFiles(byte[] zipBytes) throws IOException {
+        return unzipFiles(new ByteArrayInputStream(zipBytes));
+    }
+
+    public Map<String, byte[]> unzipFiles(InputStream zipStream) throws IOException {
         Map<String, byte[]> files = new HashMap<>();
-        try (ZipInputStream zis = new ZipInputStream(new ByteArrayInputStream(zipBytes))) {
+        try (ZipInputStream zis = new ZipInputStream(zipStream)) {
             ZipEntry entry;
             while ((entry = zis.getNextEntry()) != null) {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
@@ -100,32 +173,60 @@ public class MediaService {
 
     public void restoreMedia(int recordIndex, byte[] encryptedImage, byte[] encryptedVideo, Decryptor decryptor, SecretKey aesKey) throws Exception {
         if (encryptedImage != null && encryptedImage.length > 0) {
-            byte[] zippedImages = decryptor.decryptBytes(encryptedImage, aesKey);
-            Map<String, byte[]> images = unzipFiles(zippedImages);
-            for (Map.Entry<String, byte[]> entry : images.entrySet()) {
-                Path path = Paths.get("media", "restored_" + recordIndex + "_" + entry.getKey());
-                Files.write(path, entry.getValue());
+            for (Path path : restoreEntries(recordIndex, encryptedImage, aesKey)) {
                 System.out.println("📸 Image restored: " + path);
             }
         }
 
         if (encryptedVideo != null && encryptedVideo.length > 0) {
-            byte[] zippedVideos = decryptor.decryptBytes(encryptedVideo, aesKey);
-            Map<String, byte[]> videos = unzipFiles(zippedVideos);
-            for (Map.Entry<String, byte[]> entry : videos.entrySet()) {
-                Path path = Paths.get("media", "restored_" + recordIndex + "_" + entry.getKey());
-                Files.write(path, entry.getValue());
+            for (Path path : restoreEntries(recordIndex, encryptedVideo, aesKey)) {
                 System.out.println("🎥 Video restored: " + path);
             }
         }
     }
+
+    // Decrypt and unzip entry by entry straight to disk
+    private List<Path> restoreEntries(int recordIndex, byte[] encryptedData, SecretKey aesKey) throws IOException {
+        List<Path> restored = new ArrayList<>();
+        try (ZipInputStream zis = new ZipInputStream(SegmentedGcm.decryptingStream(new ByteArrayInputStream(encryptedData), aesKey))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                Path path = Paths.get("media", "restored_" + recordIndex + "_" + Paths.get(entry.getName()).getFileName());
+                Files.copy(zis, path, StandardCopyOption.REPLACE_EXISTING);
+                restored.add(path);
+            }
+        }
+        return restored;
+    }
     
     // Helper to get raw bytes map for web display
     public Map<String, byte[]> decryptMediaToMap(byte[] encryptedData, Decryptor decryptor, SecretKey aesKey) throws Exception {
         if (encryptedData != null && encryptedData.length > 0) {
-            byte[] zipped = decryptor.decryptBytes(encryptedData, aesKey);
-            return unzipFiles(zipped);
+            return decryptMediaToMap(new ByteArrayInputStream(encryptedData), aesKey);
         }
         return new HashMap<>();
     }
+
+    // Same, reading the archive from a stream (e.g. HospitalRepository.openMedia); null means no media
+    public Map<String, byte[]> decryptMediaToMap(InputStream encryptedData, SecretKey aesKey) throws IOException {
+        if (encryptedData == null) return new HashMap<>();
+        return unzipFiles(SegmentedGcm.decryptingStream(encryptedData, aesKey));
+    }
+
+    // Receives each file of a media archive as a stream that ends with the entry
+    public interface EntryVisitor {
+        void visit(String name, InputStream content) throws IOException;
+    }
+
+    // Decrypt and unzip entry by entry without holding any file whole; a tampered segment fails
+    // with an IOException partway through, after earlier entries have been visited
+    public void forEachMediaEntry(InputStream encryptedData, SecretKey aesKey, EntryVisitor visitor) throws IOException {
+        if (encryptedData == null) return;
+        try (ZipInputStream zis = new ZipInputStream(SegmentedGcm.decryptingStream(encryptedData, aesKey))) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                visitor.visit(entry.getName(), zis);
+            }
+        }
+    }
 }
@@ -0,0 +1,117 @@
+package service;
+
+import model.PatientRecord.MediaKind;
+
+import javax.crypto.SecretKey;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Media for a new or re-keyed record, packaged while it is being received. Each file is written
+ * straight into the images or videos archive, which is zipped into a segmented AES-GCM stream
+ * under the record's fresh data key, so plaintext only ever passes through fixed-size buffers.
+ * The ciphertext is spooled to a temp file (never the heap) and handed to the repository as a file.
+ *
+ * Entries are STORED (see MediaService.putStored), which needs each file's size and CRC before its
+ * bytes. A file is therefore first streamed into a scratch temp file, encrypted under a key that
+ * lives only in this object, and then copied into the archive once its CRC is known.
+ *
+ * Obtain one from PatientService.beginMediaUpload(), hand it to processEncryption when done, and
+ * close it once the record is stored to delete the spool files.
+ */
+public class MediaUpload implements Closeable {
+
+    private final SecretKey aesKey;
+    private final SecretKey scratchKey = CryptoPool.aesKeyGenerator().generateKey();
+    private final Map<MediaKind, Path> spooled = new EnumMap<>(MediaKind.class);
+    private final Map<MediaKind, ZipOutputStream> archives = new EnumMap<>(MediaKind.class);
+    private int files;
+    private boolean finished;
+
+    MediaUpload(SecretKey aesKey) {
+        this.aesKey = aesKey;
+    }
+
+    SecretKey getAesKey() { return aesKey; }
+
+    public boolean hasFiles() { return files > 0; }
+
+    // Add one file; false (content left unread) if its extension is not a supported image or video
+    public boolean addFile(String filename, InputStream content) throws IOException {
+        if (finished) throw new IllegalStateException("Upload already finished");
+        MediaKind kind = MediaService.kindOf(filename);
+        if (kind == null) return false;
+
+        ZipOutputStream zip = archives.get(kind);
+        if (zip == null) {
+            Path file = Files.createTempFile("upload-" + kind.name().toLowerCase() + "-", ".enc");
+            spooled.put(kind, file);
+            OutputStream enc = SegmentedGcm.encryptingStream(new BufferedOutputStream(Files.newOutputStream(file)), aesKey);
+            zip = new ZipOutputStream(enc);
+            archives.put(kind, zip);
+        }
+
+        Path scratch = Files.createTempFile("upload-entry-", ".enc");
+        try {
+            CRC32 crc = new CRC32();
+            long size;
+            try (OutputStream out = SegmentedGcm.encryptingStream(new BufferedOutputStream(Files.newOutputStream(scratch)), scratchKey)) {
+                size = new CheckedInputStream(content, crc).transferTo(out);
+            }
+            // Same entry naming as files saved by the old upload path: unique prefix, base name only
+            String name = UUID.randomUUID() + "_" + Paths.get(filename).getFileName();
+            try (InputStream in = SegmentedGcm.decryptingStream(new BufferedInputStream(Files.newInputStream(scratch)), scratchKey)) {
+                MediaService.putStored(zip, name, size, crc.getValue(), in);
+            }
+        } finally {
+            Files.deleteIfExists(scratch);
+        }
+        files++;
+        System.out.println("Encrypted uploaded file: " + filename);
+        return true;
+    }
+
+    // Close the archives; the spooled ciphertext of a kind is then complete (null when none was added)
+    void finish() throws IOException {
+        if (finished) return;
+        finished = true;
+        for (ZipOutputStream zip : archives.values()) {
+            zip.close();
+        }
+    }
+
+    Path getEncryptedFile(MediaKind kind) {
+        if (!finished) throw new IllegalStateException("Upload not finished");
+        return spooled.get(kind);
+    }
+
+    // Delete the spool files; safe to call at any point, including after a failed or rejected upload
+    @Override
+    public void close() throws IOException {
+        finished = true;
+        for (ZipOutputStream zip : archives.values()) {
+            try {
+                zip.close();
+            } catch (IOException e) {
+                // Being discarded anyway
+            }
+        }
+        for (Path file : spooled.values()) {
+            Files.deleteIfExists(file);
+        }
+        spooled.clear();
+    }
+}
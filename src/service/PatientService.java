@@ -2,6 +2,7 @@ package service;
 
 import model.PatientRecord;
 import javax.crypto.SecretKey;
+import java.io.InputStream;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.util.Base64;
@@ -9,17 +10,43 @@ import java.util.HashMap;
 import java.util.Map;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class PatientService {
 
+    // Shared pool for decrypting search results; override with -Ddecrypt.threads=N
+    private static final int DECRYPT_THREADS =
+            Integer.getInteger("decrypt.threads", Runtime.getRuntime().availableProcessors());
+    // Max workers a single search may occupy, so one big search cannot starve others; -Ddecrypt.maxPerRequest=N
+    private static final int DECRYPT_MAX_PER_REQUEST =
+            Integer.getInteger("decrypt.maxPerRequest", Math.max(1, DECRYPT_THREADS / 2));
+    // Scheme for wrapping new data keys: "rsa" (default) or "x25519"; -Dkeywrap=x25519
+    private static final boolean WRAP_X25519 = "x25519".equalsIgnoreCase(System.getProperty("keywrap", "rsa"));
+
     private final KeyService keyService;
     private final MediaService mediaService;
+    private final DataKeyCache dataKeyCache;
+    private final ExecutorService decryptPool;
 
     public PatientService() {
         this.keyService = new KeyService();
         this.mediaService = new MediaService();
+        this.dataKeyCache = new DataKeyCache();
+        this.decryptPool = Executors.newFixedThreadPool(DECRYPT_THREADS, r -> {
+            Thread t = new Thread(r, "decrypt-worker");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public DataKeyCache getDataKeyCache() {
+        return dataKeyCache;
     }
 
     public MediaService.MediaResult processEncryption(PatientRecord record, String symptoms, String diagnosis) throws Exception {
@@ -27,26 +54,91 @@ public class PatientService {
     }
 
     public MediaService.MediaResult processEncryption(PatientRecord record, String symptoms, String diagnosis, List<Path> mediaFiles) throws Exception {
-        PublicKey doctorKey = keyService.loadPublicKey(KeyService.DOCTOR_PUBLIC_KEY);
-        PublicKey nurseKey = keyService.loadPublicKey(KeyService.NURSE_PUBLIC_KEY);
-
-        Encryptor doctorEncryptor = new Encryptor(doctorKey);
-        Encryptor nurseEncryptor = new Encryptor(nurseKey);
-
+        Encryptor doctorEncryptor = new Encryptor(wrappingKey(true));
         SecretKey aesKey = doctorEncryptor.generateAESKey();
-        record.setEncryptedSymptoms(doctorEncryptor.encryptWithAES(symptoms, aesKey));
-        record.setEncryptedDiagnosis(doctorEncryptor.encryptWithAES(diagnosis, aesKey));
 
         MediaService.MediaResult mediaResult = mediaService.processMediaFiles(doctorEncryptor, aesKey, mediaFiles);
         record.setEncryptedImages(mediaResult.imageBytes);
         record.setEncryptedVideos(mediaResult.videoBytes);
 
-        record.setDoctorEncryptedAesKey(doctorEncryptor.encryptAESKeyWithRSA(aesKey));
-        record.setNurseEncryptedAesKey(nurseEncryptor.encryptAESKeyWithRSA(aesKey));
-
+        sealRecord(record, symptoms, diagnosis, aesKey);
         return mediaResult;
     }
 
+    // Start receiving media for a new data key; files are encrypted as they arrive, see MediaUpload
+    public MediaUpload beginMediaUpload() throws Exception {
+        return new MediaUpload(new Encryptor(null).generateAESKey());
+    }
+
+    // Same as the file-list variant, with media already encrypted under the upload's data key. The
+    // record refers to the upload's spool files, so keep the upload open until it is stored
+    public void processEncryption(PatientRecord record, String symptoms, String diagnosis, MediaUpload upload) throws Exception {
+        upload.finish();
+        for (PatientRecord.MediaKind kind : PatientRecord.MediaKind.values()) {
+            Path file = upload.getEncryptedFile(kind);
+            if (file != null) {
+                record.setEncryptedMediaFile(kind, file);
+            } else if (kind == PatientRecord.MediaKind.IMAGES) {
+                record.setEncryptedImages(new byte[0]);
+            } else {
+                record.setEncryptedVideos(new byte[0]);
+            }
+        }
+
+        sealRecord(record, symptoms, diagnosis, upload.getAesKey());
+    }
+
+    // Encrypt the text and wrap aesKey for both roles, replacing the record's previous data key
+    private void sealRecord(PatientRecord record, String symptoms, String diagnosis, SecretKey aesKey) throws Exception {
+        Encryptor doctorEncryptor = new Encryptor(wrappingKey(true));
+        Encryptor nurseEncryptor = new Encryptor(wrappingKey(false));
+
+        // Record is being re-keyed (update), so any cached unwrap of the old key is stale
+        dataKeyCache.invalidate(record.getDoctorEncryptedAesKey());
+        dataKeyCache.invalidate(record.getNurseEncryptedAesKey());
+
+        record.setEncryptedSymptoms(doctorEncryptor.encryptWithAES(symptoms, aesKey));
+        record.setEncryptedDiagnosis(doctorEncryptor.encryptWithAES(diagnosis, aesKey));
+
+        record.setDoctorEncryptedAesKey(doctorEncryptor.wrapAESKey(aesKey));
+        record.setNurseEncryptedAesKey(nurseEncryptor.wrapAESKey(aesKey));
+
+        BlindIndex index = blindIndex();
+        record.setTermTokens(index != null ? index.tokensFor(symptoms, diagnosis) : null);
+    }
+
+    private PublicKey wrappingKey(boolean isDoctor) throws Exception {
+        if (WRAP_X25519) {
+            return keyService.loadX25519PublicKey(isDoctor ? KeyService.DOCTOR_X25519_PUBLIC_KEY : KeyService.NURSE_X25519_PUBLIC_KEY);
+        }
+        return keyService.loadPublicKey(isDoctor ? KeyService.DOCTOR_PUBLIC_KEY : KeyService.NURSE_PUBLIC_KEY);
+    }
+
+    // Text-only update. The data key and both wrapped copies stay as they are, so the encrypted images
+    // and videos remain valid byte-for-byte and are never decrypted; only symptoms and diagnosis are
+    // re-encrypted (fresh IVs, same key). A null field keeps its current value.
+    public void updateText(PatientRecord record, String symptoms, String diagnosis, boolean isDoctor) throws Exception {
+        String keyPath = isDoctor ? KeyService.DOCTOR_PRIVATE_KEY : KeyService.NURSE_PRIVATE_KEY;
+        Decryptor decryptor = new Decryptor(keyService.loadPrivateKey(keyPath));
+        byte[] encryptedAesKey = isDoctor ? record.getDoctorEncryptedAesKey() : record.getNurseEncryptedAesKey();
+
+        if (encryptedAesKey == null || encryptedAesKey.length == 0) {
+            throw new Exception("No encrypted key found for this user role.");
+        }
+
+        SecretKey aesKey = unwrapDataKey(decryptor, encryptedAesKey, isDoctor);
+        Encryptor encryptor = new Encryptor(null);
+        if (symptoms != null) record.setEncryptedSymptoms(encryptor.encryptWithAES(symptoms, aesKey));
+        if (diagnosis != null) record.setEncryptedDiagnosis(encryptor.encryptWithAES(diagnosis, aesKey));
+
+        BlindIndex index = blindIndex();
+        if (index != null) {
+            String s = symptoms != null ? symptoms : decryptor.decryptString(record.getEncryptedSymptoms(), aesKey);
+            String d = diagnosis != null ? diagnosis : decryptor.decryptString(record.getEncryptedDiagnosis(), aesKey);
+            record.setTermTokens(index.tokensFor(s, d));
+        }
+    }
+
     public void decryptAndRestore(PatientRecord record, boolean isDoctor) throws Exception {
         String keyPath = isDoctor ? KeyService.DOCTOR_PRIVATE_KEY : KeyService.NURSE_PRIVATE_KEY;
         PrivateKey privateKey = keyService.loadPrivateKey(keyPath);
@@ -58,7 +150,7 @@ public class PatientService {
             throw new Exception("No encrypted key found for this user role.");
         }
 
-        SecretKey aesKey = decryptor.decryptAESKey(encryptedAesKey);
+        SecretKey aesKey = unwrapDataKey(decryptor, encryptedAesKey, isDoctor);
         
         // Decrypt strings (we return them, or print them? Service should return data)
         // But the method signature is void. Let's change it to return a DecryptedRecord DTO?
@@ -82,14 +174,154 @@ public class PatientService {
             throw new Exception("No encrypted key found for this user role.");
         }
 
-        SecretKey aesKey = decryptor.decryptAESKey(encryptedAesKey);
+        SecretKey aesKey = unwrapDataKey(decryptor, encryptedAesKey, isDoctor);
         String symptoms = decryptor.decryptString(record.getEncryptedSymptoms(), aesKey);
         String diagnosis = decryptor.decryptString(record.getEncryptedDiagnosis(), aesKey);
         
         return new String[]{symptoms, diagnosis};
     }
 
+    // Blind index tokens for a keyword search (all terms must match)
+    public List<String> keywordTokens(String query) throws Exception {
+        BlindIndex index = blindIndex();
+        if (index == null) {
+            throw new Exception("Keyword index key not found at " + KeyService.INDEX_KEY);
+        }
+        return index.queryTokens(query);
+    }
+
+    // Indexing is optional: without keys/index/hmac.key records are stored unindexed
+    private BlindIndex blindIndex() throws Exception {
+        if (!java.nio.file.Files.exists(java.nio.file.Paths.get(KeyService.INDEX_KEY))) {
+            return null;
+        }
+        return new BlindIndex(keyService.loadIndexKey(KeyService.INDEX_KEY));
+    }
+
+    // Rewrites any ciphertext still in an old format into the newest one (CipherEnvelope for text,
+    // SegmentedGcm for media) under the record's existing data key. Returns false if nothing changed.
+    public boolean upgradeCiphertexts(PatientRecord record) throws Exception {
+        boolean textStale = isStaleText(record.getEncryptedSymptoms()) || isStaleText(record.getEncryptedDiagnosis());
+        boolean mediaStale = isStaleMedia(record.getEncryptedImages()) || isStaleMedia(record.getEncryptedVideos());
+        if (!textStale && !mediaStale) {
+            return false;
+        }
+
+        boolean isDoctor = record.getDoctorEncryptedAesKey() != null && record.getDoctorEncryptedAesKey().length > 0;
+        String keyPath = isDoctor ? KeyService.DOCTOR_PRIVATE_KEY : KeyService.NURSE_PRIVATE_KEY;
+        Decryptor decryptor = new Decryptor(keyService.loadPrivateKey(keyPath));
+        byte[] encryptedAesKey = isDoctor ? record.getDoctorEncryptedAesKey() : record.getNurseEncryptedAesKey();
+
+        if (encryptedAesKey == null || encryptedAesKey.length == 0) {
+            throw new Exception("No encrypted key found for record " + record.getRecordIndex());
+        }
+
+        SecretKey aesKey = unwrapDataKey(decryptor, encryptedAesKey, isDoctor);
+        Encryptor encryptor = new Encryptor(null);
+
+        if (isStaleText(record.getEncryptedSymptoms())) {
+            record.setEncryptedSymptoms(encryptor.encryptBytesWithAES(decryptor.decryptBytes(record.getEncryptedSymptoms(), aesKey), aesKey));
+        }
+        if (isStaleText(record.getEncryptedDiagnosis())) {
+            record.setEncryptedDiagnosis(encryptor.encryptBytesWithAES(decryptor.decryptBytes(record.getEncryptedDiagnosis(), aesKey), aesKey));
+        }
+        if (isStaleMedia(record.getEncryptedImages())) {
+            record.setEncryptedImages(reencryptSegmented(decryptor.decryptBytes(record.getEncryptedImages(), aesKey), aesKey));
+        }
+        if (isStaleMedia(record.getEncryptedVideos())) {
+            record.setEncryptedVideos(reencryptSegmented(decryptor.decryptBytes(record.getEncryptedVideos(), aesKey), aesKey));
+        }
+        return true;
+    }
+
+    // Judged from the media prefixes of a scanAfter row, so the archives themselves need not be read
+    public boolean hasStaleMedia(PatientRecord record) {
+        return isStaleMedia(record.getMediaPrefix(PatientRecord.MediaKind.IMAGES))
+                || isStaleMedia(record.getMediaPrefix(PatientRecord.MediaKind.VIDEOS));
+    }
+
+    private static boolean isStaleText(byte[] data) {
+        return data != null && data.length > 0 && !CipherEnvelope.isCurrent(data);
+    }
+
+    private static boolean isStaleMedia(byte[] data) {
+        return data != null && data.length > 0 && !SegmentedGcm.isSegmented(data);
+    }
+
+    // Legacy archives were deflated; their entries are re-stored on the way so ranges become plain copies
+    private static byte[] reencryptSegmented(byte[] zip, SecretKey aesKey) throws Exception {
+        byte[] plain = MediaService.storeEntries(zip);
+        java.io.ByteArrayOutputStream baos = new java.io.ByteArrayOutputStream(plain.length + plain.length / 1024 + 64);
+        try (java.io.OutputStream out = SegmentedGcm.encryptingStream(baos, aesKey)) {
+            out.write(plain);
+        }
+        return baos.toByteArray();
+    }
+
+    // Decrypts many records on the shared pool. Result order matches the input; an entry is null
+    // if that record could not be decrypted (wrong key/role), mirroring the sequential loop.
+    public List<String[]> decryptMedicalDataAll(List<PatientRecord> records, boolean isDoctor) throws Exception {
+        String[][] results = new String[records.size()][];
+        decryptMedicalDataEach(records, isDoctor, (i, decrypted) -> results[i] = decrypted);
+        return java.util.Arrays.asList(results);
+    }
+
+    // Receives decrypted {symptoms, diagnosis} for records[i]; null when that record could not be decrypted
+    public interface DecryptedRowSink {
+        void accept(int i, String[] decrypted) throws Exception;
+    }
+
+    // Decrypt in parallel but deliver in order on the calling thread, each row as soon as it and all
+    // rows before it are done, so a caller can start responding before the last row is decrypted
+    public void decryptMedicalDataEach(List<PatientRecord> records, boolean isDoctor, DecryptedRowSink sink) throws Exception {
+        int n = records.size();
+        int workers = Math.min(n, DECRYPT_MAX_PER_REQUEST);
+
+        if (workers <= 1) {
+            for (int i = 0; i < n; i++) {
+                sink.accept(i, tryDecryptMedicalData(records.get(i), isDoctor));
+            }
+            return;
+        }
+
+        // Each worker takes a strided slice, so at most 'workers' pool threads serve this request
+        List<CompletableFuture<String[]>> rows = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) rows.add(new CompletableFuture<>());
+        List<Future<?>> futures = new ArrayList<>(workers);
+        for (int w = 0; w < workers; w++) {
+            final int start = w;
+            futures.add(decryptPool.submit(() -> {
+                for (int i = start; i < n; i += workers) {
+                    rows.get(i).complete(tryDecryptMedicalData(records.get(i), isDoctor));
+                }
+            }));
+        }
+        try {
+            for (int i = 0; i < n; i++) {
+                sink.accept(i, rows.get(i).get());
+            }
+        } finally {
+            // If the caller gave up (e.g. the client went away), skip slices that have not started yet
+            for (Future<?> f : futures) f.cancel(false);
+        }
+    }
+
+    private String[] tryDecryptMedicalData(PatientRecord record, boolean isDoctor) {
+        try {
+            return decryptMedicalData(record, isDoctor);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     public Map<String, List<String>> getDecryptedMedia(PatientRecord record, boolean isDoctor) throws Exception {
+        return getDecryptedMedia(record, isDoctor,
+                streamOf(record.getEncryptedImages()), streamOf(record.getEncryptedVideos()));
+    }
+
+    // Media read straight from the given archive streams; only the record's wrapped keys are needed
+    public Map<String, List<String>> getDecryptedMedia(PatientRecord record, boolean isDoctor,
+                                                       InputStream encryptedImages, InputStream encryptedVideos) throws Exception {
         String keyPath = isDoctor ? KeyService.DOCTOR_PRIVATE_KEY : KeyService.NURSE_PRIVATE_KEY;
         PrivateKey privateKey = keyService.loadPrivateKey(keyPath);
 
@@ -100,21 +332,68 @@ public class PatientService {
             return new HashMap<>();
         }
 
-        SecretKey aesKey = decryptor.decryptAESKey(encryptedAesKey);
+        SecretKey aesKey = unwrapDataKey(decryptor, encryptedAesKey, isDoctor);
         Map<String, List<String>> media = new HashMap<>();
         media.put("images", new java.util.ArrayList<>());
         media.put("videos", new java.util.ArrayList<>());
 
-        Map<String, byte[]> images = mediaService.decryptMediaToMap(record.getEncryptedImages(), decryptor, aesKey);
+        Map<String, byte[]> images = mediaService.decryptMediaToMap(encryptedImages, aesKey);
         for (byte[] img : images.values()) {
             media.get("images").add(Base64.getEncoder().encodeToString(img));
         }
 
-        Map<String, byte[]> videos = mediaService.decryptMediaToMap(record.getEncryptedVideos(), decryptor, aesKey);
+        Map<String, byte[]> videos = mediaService.decryptMediaToMap(encryptedVideos, aesKey);
         for (byte[] vid : videos.values()) {
             media.get("videos").add(Base64.getEncoder().encodeToString(vid));
         }
 
         return media;
     }
+
+    // Visit each decrypted file of one media archive without buffering it; nothing is visited when
+    // the record has no data key for this role
+    public void forEachDecryptedMedia(PatientRecord record, boolean isDoctor, InputStream encryptedMedia,
+                                      MediaService.EntryVisitor visitor) throws Exception {
+        SecretKey aesKey = mediaKey(record, isDoctor);
+        if (aesKey == null) return;
+        mediaService.forEachMediaEntry(encryptedMedia, aesKey, visitor);
+    }
+
+    // Random-access view of one stored media archive (storedLength bytes, read through source);
+    // null when the archive is empty or the record has no data key for this role
+    public MediaArchive openMediaArchive(PatientRecord record, boolean isDoctor, SegmentedGcm.RangeSource source,
+                                         long storedLength) throws Exception {
+        if (storedLength == 0) return null;
+        SecretKey aesKey = mediaKey(record, isDoctor);
+        if (aesKey == null) return null;
+        return MediaArchive.open(SegmentedGcm.randomAccess(source, storedLength, aesKey));
+    }
+
+    private SecretKey mediaKey(PatientRecord record, boolean isDoctor) throws Exception {
+        byte[] encryptedAesKey = isDoctor ? record.getDoctorEncryptedAesKey() : record.getNurseEncryptedAesKey();
+        if (encryptedAesKey == null || encryptedAesKey.length == 0) return null;
+
+        String keyPath = isDoctor ? KeyService.DOCTOR_PRIVATE_KEY : KeyService.NURSE_PRIVATE_KEY;
+        Decryptor decryptor = new Decryptor(keyService.loadPrivateKey(keyPath));
+        return unwrapDataKey(decryptor, encryptedAesKey, isDoctor);
+    }
+
+    private static InputStream streamOf(byte[] data) {
+        return data == null || data.length == 0 ? null : new java.io.ByteArrayInputStream(data);
+    }
+
+    // RSA-OAEP unwrap is the most expensive step of a read, so reuse keys we have already unwrapped
+    private SecretKey unwrapDataKey(Decryptor decryptor, byte[] encryptedAesKey, boolean isDoctor) throws Exception {
+        String role = isDoctor ? "doctor" : "nurse";
+        SecretKey aesKey = dataKeyCache.get(role, encryptedAesKey);
+        if (aesKey == null) {
+            if (X25519KeyWrap.isWrapped(encryptedAesKey)) {
+                String keyPath = isDoctor ? KeyService.DOCTOR_X25519_PRIVATE_KEY : KeyService.NURSE_X25519_PRIVATE_KEY;
+                decryptor = new Decryptor(keyService.loadX25519PrivateKey(keyPath));
+            }
+            aesKey = decryptor.decryptAESKey(encryptedAesKey);
+            dataKeyCache.put(role, encryptedAesKey, aesKey);
+        }
+        return aesKey;
+    }
 }
@@ -0,0 +1,389 @@
+package service;
+
+import util.CryptoRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.io.ByteArrayInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Chunked AES-GCM for large media, so encryption and decryption run in constant memory.
+ *
+ * Format: [header (16 bytes)] [segment 0] [segment 1] ... [last segment]
+ *   header  = "ZTSG" | version (1) | segment size (4, big endian) | random nonce prefix (7)
+ *   segment = AES-GCM(plaintext chunk) incl. 16-byte tag, plaintext chunk = segment size except the last
+ *   nonce   = nonce prefix (7) | segment counter (4) | last-segment flag (1)
+ * Every segment authenticates the header as AAD. The counter in the nonce prevents reordering and the
+ * last flag prevents truncation or appending.
+ *
+ * Blobs written by Encryptor.encryptBytesWithAES ([IV][ciphertext]) are still readable through
+ * {@link #decryptingStream}, but are buffered in full as before.
+ */
+public final class SegmentedGcm {
+
+    private static final byte[] MAGIC = "ZTSG".getBytes(StandardCharsets.US_ASCII);
+    private static final byte VERSION = 1;
+    private static final int NONCE_PREFIX_SIZE = 7;
+    // Also the number of leading bytes isSegmented needs to tell the formats apart
+    public static final int HEADER_SIZE = MAGIC.length + 1 + 4 + NONCE_PREFIX_SIZE;
+    private static final int GCM_IV_SIZE = 12;
+    private static final int GCM_TAG_SIZE = 128;
+    private static final int TAG_BYTES = GCM_TAG_SIZE / 8;
+
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+    private static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    private SegmentedGcm() {
+        // Prevent object creation (utility class)
+    }
+
+    public static OutputStream encryptingStream(OutputStream out, SecretKey aesKey) throws IOException {
+        return encryptingStream(out, aesKey, DEFAULT_SEGMENT_SIZE);
+    }
+
+    // Closing the returned stream writes the final segment and closes 'out'
+    public static OutputStream encryptingStream(OutputStream out, SecretKey aesKey, int segmentSize) throws IOException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+        }
+        return new EncryptingOutputStream(out, aesKey, segmentSize);
+    }
+
+    // Accepts both the segmented format and legacy single-blob [IV][ciphertext] data
+    public static InputStream decryptingStream(InputStream in, SecretKey aesKey) throws IOException {
+        PushbackInputStream pin = new PushbackInputStream(in, HEADER_SIZE);
+        byte[] header = pin.readNBytes(HEADER_SIZE);
+        if (isSegmented(header)) {
+            return new DecryptingInputStream(pin, aesKey, header);
+        }
+
+        // Legacy blob: authenticate the whole thing before releasing any plaintext
+        byte[] rest = pin.readAllBytes();
+        byte[] blob = new byte[header.length + rest.length];
+        System.arraycopy(header, 0, blob, 0, header.length);
+        System.arraycopy(rest, 0, blob, header.length, rest.length);
+        try {
+            return new ByteArrayInputStream(new Decryptor(null).decryptBytes(blob, aesKey));
+        } catch (Exception e) {
+            throw new IOException("Failed to decrypt media", e);
+        }
+    }
+
+    public static boolean isSegmented(byte[] data) {
+        if (data == null || data.length < HEADER_SIZE) return false;
+        return Arrays.equals(data, 0, MAGIC.length, MAGIC, 0, MAGIC.length) && data[MAGIC.length] == VERSION;
+    }
+
+    private static byte[] nonce(byte[] header, int counter, boolean last) {
+        byte[] nonce = new byte[GCM_IV_SIZE];
+        System.arraycopy(header, HEADER_SIZE - NONCE_PREFIX_SIZE, nonce, 0, NONCE_PREFIX_SIZE);
+        ByteBuffer.wrap(nonce, NONCE_PREFIX_SIZE, 4).putInt(counter);
+        nonce[GCM_IV_SIZE - 1] = (byte) (last ? 1 : 0);
+        return nonce;
+    }
+
+    private static Cipher newCipher() throws IOException {
+        // One Cipher per stream rather than CryptoPool's: a thread may have several media streams open at once
+        try {
+            return Cipher.getInstance(CryptoPool.AES_GCM);
+        } catch (Exception e) {
+            throw new IOException("AES-GCM unavailable", e);
+        }
+    }
+
+    private static class EncryptingOutputStream extends FilterOutputStream {
+        private final SecretKey key;
+        private final Cipher cipher;
+        private final byte[] header;
+        private final byte[] buffer;
+        private int pos;
+        private int counter;
+        private boolean closed;
+
+        EncryptingOutputStream(OutputStream out, SecretKey key, int segmentSize) throws IOException {
+            super(out);
+            this.key = key;
+            this.cipher = newCipher();
+            this.buffer = new byte[segmentSize];
+
+            byte[] prefix = new byte[NONCE_PREFIX_SIZE];
+            CryptoRandom.nextBytes(prefix);
+            header = ByteBuffer.allocate(HEADER_SIZE)
+                    .put(MAGIC).put(VERSION).putInt(segmentSize).put(prefix)
+                    .array();
+            out.write(header);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (closed) throw new IOException("Stream closed");
+            while (len > 0) {
+                // Only seal a full buffer once more data arrives, so the final segment is always marked last
+                if (pos == buffer.length) {
+                    writeSegment(false);
+                }
+                int n = Math.min(len, buffer.length - pos);
+                System.arraycopy(b, off, buffer, pos, n);
+                pos += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) return;
+            closed = true;
+            try {
+                writeSegment(true);
+                Arrays.fill(buffer, (byte) 0);
+            } finally {
+                out.close();
+            }
+        }
+
+        private void writeSegment(boolean last) throws IOException {
+            if (counter == Integer.MAX_VALUE) throw new IOException("Too many segments");
+            try {
+                cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_SIZE, nonce(header, counter, last)));
+                cipher.updateAAD(header);
+                out.write(cipher.doFinal(buffer, 0, pos));
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Segment encryption failed", e);
+            }
+            counter++;
+            pos = 0;
+        }
+    }
+
+    private static class DecryptingInputStream extends InputStream {
+        private final PushbackInputStream in;
+        private final SecretKey key;
+        private final Cipher cipher;
+        private final byte[] header;
+        private final byte[] segment;
+        private byte[] plain = new byte[0];
+        private int plainPos;
+        private int counter;
+        private boolean done;
+
+        DecryptingInputStream(PushbackInputStream in, SecretKey key, byte[] header) throws IOException {
+            this.in = in;
+            this.key = key;
+            this.cipher = newCipher();
+            this.header = header;
+
+            int segmentSize = ByteBuffer.wrap(header, MAGIC.length + 1, 4).getInt();
+            if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+                throw new IOException("Invalid segment size: " + segmentSize);
+            }
+            this.segment = new byte[segmentSize + TAG_BYTES];
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n == -1 ? -1 : one[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            while (plainPos == plain.length) {
+                if (done) return -1;
+                readSegment();
+            }
+            int n = Math.min(len, plain.length - plainPos);
+            System.arraycopy(plain, plainPos, b, off, n);
+            plainPos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private void readSegment() throws IOException {
+            int n = in.readNBytes(segment, 0, segment.length);
+            if (n < TAG_BYTES) throw new IOException("Truncated media segment");
+
+            // The segment is last if nothing follows it
+            int next = in.read();
+            boolean last = next == -1;
+            if (!last) in.unread(next);
+
+            try {
+                cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_SIZE, nonce(header, counter, last)));
+                cipher.updateAAD(header);
+                plain = cipher.doFinal(segment, 0, n);
+            } catch (Exception e) {
+                throw new IOException("Media segment " + counter + " failed authentication", e);
+            }
+            plainPos = 0;
+            counter++;
+            done = last;
+        }
+    }
+
+    // Ciphertext bytes [offset, offset + length) of one stored blob; the caller closes the stream
+    public interface RangeSource {
+        InputStream open(long offset, long length) throws IOException;
+    }
+
+    // Random access over a stored blob of known size. Only the segments covering a requested range are
+    // fetched and decrypted; each is still authenticated, and its counter and last flag pin it to its
+    // position, so a range cannot be served from moved, truncated or foreign ciphertext.
+    // Legacy single-blob data has no segments: every range would mean decrypting the whole blob
+    // again, so it is refused (NotSegmentedException) and must be read whole or migrated.
+    public static RandomAccess randomAccess(RangeSource source, long ciphertextLength, SecretKey aesKey) throws IOException {
+        if (ciphertextLength < HEADER_SIZE) throw new NotSegmentedException();
+        byte[] header;
+        try (InputStream in = source.open(0, HEADER_SIZE)) {
+            header = in.readNBytes(HEADER_SIZE);
+        }
+        if (!isSegmented(header)) throw new NotSegmentedException();
+        return new RandomAccess(source, ciphertextLength, aesKey, header);
+    }
+
+    public static final class NotSegmentedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NotSegmentedException() {
+            super("Media is in the legacy single-blob format and has no random access; run the envelope migration");
+        }
+    }
+
+    public static final class RandomAccess {
+        private final RangeSource source;
+        private final SecretKey key;
+        private final byte[] header;
+        private final int segmentSize;
+        private final long segments;
+        private final long length;
+
+        private RandomAccess(RangeSource source, long ciphertextLength, SecretKey key, byte[] header) throws IOException {
+            this.source = source;
+            this.key = key;
+            this.header = header;
+            this.segmentSize = ByteBuffer.wrap(header, MAGIC.length + 1, 4).getInt();
+            if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+                throw new IOException("Invalid segment size: " + segmentSize);
+            }
+            long body = ciphertextLength - HEADER_SIZE;
+            long stride = segmentSize + TAG_BYTES;
+            // Every segment but the last is full; the last holds 1..segmentSize bytes (0 only if it is the only one)
+            this.segments = (body + stride - 1) / stride;
+            if (segments == 0 || segments > Integer.MAX_VALUE || body - (segments - 1) * stride < TAG_BYTES) {
+                throw new IOException("Truncated media archive");
+            }
+            this.length = body - segments * TAG_BYTES;
+        }
+
+        // Plaintext length
+        public long length() { return length; }
+
+        // Plaintext bytes [offset, offset + len), clipped to the end
+        public InputStream open(long offset, long len) throws IOException {
+            if (offset < 0 || len < 0 || offset > length) throw new IOException("Range outside media archive");
+            long end = Math.min(length, offset + len);
+            if (end == offset) return new ByteArrayInputStream(new byte[0]);
+
+            int first = (int) (offset / segmentSize);
+            int last = (int) ((end - 1) / segmentSize);
+            long stride = segmentSize + TAG_BYTES;
+            long from = HEADER_SIZE + first * stride;
+            long to = Math.min(HEADER_SIZE + (last + 1) * stride, HEADER_SIZE + length + segments * TAG_BYTES);
+            InputStream ciphertext = source.open(from, to - from);
+            return new RangeStream(ciphertext, first, last, (int) (offset - (long) first * segmentSize), end - offset);
+        }
+
+        private final class RangeStream extends InputStream {
+            private final InputStream in;
+            private final Cipher cipher;
+            private final byte[] segment;
+            private final int lastCounter;
+            private int counter;
+            private int skip;
+            private long remaining;
+            private byte[] plain = new byte[0];
+            private int plainPos;
+
+            RangeStream(InputStream in, int firstCounter, int lastCounter, int skip, long remaining) throws IOException {
+                this.in = in;
+                this.cipher = newCipher();
+                this.segment = new byte[segmentSize + TAG_BYTES];
+                this.counter = firstCounter;
+                this.lastCounter = lastCounter;
+                this.skip = skip;
+                this.remaining = remaining;
+            }
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                int n = read(one, 0, 1);
+                return n == -1 ? -1 : one[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) return 0;
+                if (remaining == 0) return -1;
+                while (plainPos == plain.length) {
+                    if (counter > lastCounter) throw new IOException("Truncated media segment");
+                    readSegment();
+                }
+                int n = (int) Math.min(Math.min(len, plain.length - plainPos), remaining);
+                System.arraycopy(plain, plainPos, b, off, n);
+                plainPos += n;
+                remaining -= n;
+                return n;
+            }
+
+            @Override
+            public void close() throws IOException {
+                in.close();
+            }
+
+            private void readSegment() throws IOException {
+                boolean last = counter == segments - 1;
+                int expected = last ? (int) (length - (long) counter * segmentSize) + TAG_BYTES : segment.length;
+                int n = in.readNBytes(segment, 0, expected);
+                if (n != expected) throw new IOException("Truncated media segment");
+                try {
+                    cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(GCM_TAG_SIZE, nonce(header, counter, last)));
+                    cipher.updateAAD(header);
+                    plain = cipher.doFinal(segment, 0, n);
+                } catch (Exception e) {
+                    throw new IOException("Media segment " + counter + " failed authentication", e);
+                }
+                plainPos = Math.min(skip, plain.length);
+                skip = 0;
+                counter++;
+            }
+        }
+    }
+}
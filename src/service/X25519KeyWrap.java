@@ -0,0 +1,117 @@
+package service;
+
+import util.CryptoRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
+
+/**
+ * ECIES-style wrapping of AES data keys: ephemeral X25519 key agreement, HKDF-SHA256, AES-GCM.
+ * Unwrapping costs one scalar multiplication instead of an RSA-2048 private-key operation.
+ *
+ * Format: [tag 0x02] [ephemeral public key, X.509 (44)] [IV (12)] [wrapped key + GCM tag (48)]
+ * RSA-OAEP wraps carry no tag and are always the modulus length (256+ bytes), so the two
+ * schemes are told apart by tag and length and can coexist in the same columns.
+ */
+public final class X25519KeyWrap {
+
+    public static final byte TAG = 0x02;
+
+    private static final int EPHEMERAL_SIZE = 44;
+    private static final int GCM_IV_SIZE = 12;
+    private static final int GCM_TAG_SIZE = 128;
+    private static final int WRAPPED_SIZE = 1 + EPHEMERAL_SIZE + GCM_IV_SIZE + 32 + GCM_TAG_SIZE / 8;
+    private static final byte[] HKDF_INFO = "zero-trust key wrap v2".getBytes(StandardCharsets.US_ASCII);
+
+    private X25519KeyWrap() {
+        // Prevent object creation (utility class)
+    }
+
+    public static boolean isWrapped(byte[] wrappedKey) {
+        return wrappedKey != null && wrappedKey.length == WRAPPED_SIZE && wrappedKey[0] == TAG;
+    }
+
+    public static boolean supports(Key key) {
+        return key != null && ("XDH".equals(key.getAlgorithm()) || "X25519".equals(key.getAlgorithm()));
+    }
+
+    public static byte[] wrap(SecretKey aesKey, PublicKey recipient) throws Exception {
+        KeyPairGenerator gen = KeyPairGenerator.getInstance("X25519");
+        gen.initialize(255, CryptoRandom.get());
+        KeyPair ephemeral = gen.generateKeyPair();
+        byte[] ephemeralPub = ephemeral.getPublic().getEncoded();
+
+        byte[] kek = deriveKek(ephemeral.getPrivate(), recipient, ephemeralPub);
+        byte[] iv = new byte[GCM_IV_SIZE];
+        CryptoRandom.nextBytes(iv);
+        try {
+            Cipher aes = CryptoPool.aesGcm();
+            aes.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(kek, "AES"), new GCMParameterSpec(GCM_TAG_SIZE, iv));
+            aes.updateAAD(new byte[]{TAG});
+            aes.updateAAD(ephemeralPub);
+            byte[] sealed = aes.doFinal(aesKey.getEncoded());
+
+            return ByteBuffer.allocate(WRAPPED_SIZE).put(TAG).put(ephemeralPub).put(iv).put(sealed).array();
+        } finally {
+            Arrays.fill(kek, (byte) 0);
+        }
+    }
+
+    public static SecretKey unwrap(byte[] wrappedKey, PrivateKey recipient) throws Exception {
+        if (!isWrapped(wrappedKey)) {
+            throw new Exception("Not an X25519-wrapped key");
+        }
+        byte[] ephemeralPub = Arrays.copyOfRange(wrappedKey, 1, 1 + EPHEMERAL_SIZE);
+        byte[] iv = Arrays.copyOfRange(wrappedKey, 1 + EPHEMERAL_SIZE, 1 + EPHEMERAL_SIZE + GCM_IV_SIZE);
+
+        PublicKey ephemeral = CryptoPool.xdhKeyFactory().generatePublic(new X509EncodedKeySpec(ephemeralPub));
+        byte[] kek = deriveKek(recipient, ephemeral, ephemeralPub);
+        try {
+            Cipher aes = CryptoPool.aesGcm();
+            aes.init(Cipher.DECRYPT_MODE, new SecretKeySpec(kek, "AES"), new GCMParameterSpec(GCM_TAG_SIZE, iv));
+            aes.updateAAD(new byte[]{TAG});
+            aes.updateAAD(ephemeralPub);
+            byte[] keyBytes = aes.doFinal(wrappedKey, 1 + EPHEMERAL_SIZE + GCM_IV_SIZE,
+                    wrappedKey.length - 1 - EPHEMERAL_SIZE - GCM_IV_SIZE);
+            return new SecretKeySpec(keyBytes, "AES");
+        } finally {
+            Arrays.fill(kek, (byte) 0);
+        }
+    }
+
+    // HKDF-SHA256 (RFC 5869) over the shared secret, salted with the ephemeral public key
+    private static byte[] deriveKek(PrivateKey priv, PublicKey pub, byte[] ephemeralPub) throws Exception {
+        KeyAgreement ka = KeyAgreement.getInstance("X25519");
+        ka.init(priv);
+        ka.doPhase(pub, true);
+        byte[] shared = ka.generateSecret();
+
+        try {
+            Mac hmac = Mac.getInstance("HmacSHA256");
+            hmac.init(new SecretKeySpec(ephemeralPub, "HmacSHA256"));
+            byte[] prk = hmac.doFinal(shared);
+
+            hmac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            hmac.update(HKDF_INFO);
+            hmac.update((byte) 1);
+            byte[] okm = hmac.doFinal();
+            Arrays.fill(prk, (byte) 0);
+            return okm;
+        } finally {
+            Arrays.fill(shared, (byte) 0);
+        }
+    }
+}
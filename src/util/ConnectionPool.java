@@ -0,0 +1,261 @@
+package util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Small JDBC connection pool. Borrowers get a proxy whose close() hands the connection back.
+ *
+ *  - between minSize and maxSize physical connections; borrowing waits up to borrowTimeoutMillis
+ *  - idle connections are validated by a background task, not on every borrow
+ *  - connections held longer than leakThresholdMillis are reported with the borrower's stack
+ *  - prepared statements are cached per connection by the driver (cachePrepStmts in the URL)
+ */
+public class ConnectionPool {
+
+    private static final long HOUSEKEEPING_SECONDS = 15;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long IDLE_TIMEOUT_MILLIS = 5 * 60 * 1000L;
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long leakThresholdMillis;
+
+    private final Semaphore permits;
+    // Most recently returned first, so a hot subset of connections stays warm
+    private final LinkedBlockingDeque<Connection> idle = new LinkedBlockingDeque<>();
+    private final Map<Connection, Long> idleSince = new ConcurrentHashMap<>();
+    private final Map<Connection, Borrow> borrowed = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService housekeeper;
+    private volatile boolean closed;
+
+    private final AtomicLong borrows = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+
+    public ConnectionPool(String url, String username, String password,
+                          int minSize, int maxSize, long borrowTimeoutMillis, long leakThresholdMillis) {
+        if (minSize < 0 || maxSize <= 0 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size " + minSize + ".." + maxSize);
+        }
+        this.url = url;
+        this.username = username;
+        this.password = password;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        this.permits = new Semaphore(maxSize, true);
+
+        this.housekeeper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "db-pool-housekeeper");
+            t.setDaemon(true);
+            return t;
+        });
+        housekeeper.scheduleWithFixedDelay(this::housekeep, HOUSEKEEPING_SECONDS, HOUSEKEEPING_SECONDS, TimeUnit.SECONDS);
+    }
+
+    public Connection borrow() throws SQLException {
+        if (closed) throw new SQLException("Connection pool is closed");
+
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                timeouts.incrementAndGet();
+                throw new SQLException("Timed out after " + borrowTimeoutMillis + " ms waiting for a database connection ("
+                        + getActive() + " active, " + maxSize + " max)");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted waiting for a database connection", e);
+        }
+        recordWait(System.nanoTime() - start);
+
+        try {
+            Connection raw = idle.pollFirst();
+            if (raw != null) idleSince.remove(raw);
+            if (raw == null || raw.isClosed()) {
+                raw = DriverManager.getConnection(url, username, password);
+                created.incrementAndGet();
+            }
+            borrowed.put(raw, new Borrow(Thread.currentThread().getName()));
+            borrows.incrementAndGet();
+            return wrap(raw);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    public int getActive() { return borrowed.size(); }
+    public int getIdle() { return idle.size(); }
+    public int getMaxSize() { return maxSize; }
+    public long getBorrows() { return borrows.get(); }
+    public long getTimeouts() { return timeouts.get(); }
+    public long getCreated() { return created.get(); }
+    public double getAverageWaitMillis() {
+        long n = borrows.get();
+        return n == 0 ? 0.0 : waitNanos.get() / 1_000_000.0 / n;
+    }
+    public double getMaxWaitMillis() { return maxWaitNanos.get() / 1_000_000.0; }
+
+    public String stats() {
+        return String.format("active=%d idle=%d max=%d borrows=%d avgWait=%.2fms maxWait=%.2fms timeouts=%d created=%d",
+                getActive(), getIdle(), maxSize, getBorrows(), getAverageWaitMillis(), getMaxWaitMillis(),
+                getTimeouts(), getCreated());
+    }
+
+    public void close() {
+        closed = true;
+        housekeeper.shutdownNow();
+        Connection c;
+        while ((c = idle.pollFirst()) != null) {
+            closeQuietly(c);
+        }
+        idleSince.clear();
+    }
+
+    private void giveBack(Connection raw) {
+        borrowed.remove(raw);
+        try {
+            if (closed || raw.isClosed()) {
+                closeQuietly(raw);
+            } else {
+                // Never hand a half-finished transaction to the next borrower
+                if (!raw.getAutoCommit()) {
+                    raw.rollback();
+                    raw.setAutoCommit(true);
+                }
+                idleSince.put(raw, System.currentTimeMillis());
+                idle.offerFirst(raw);
+            }
+        } catch (SQLException e) {
+            closeQuietly(raw);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void housekeep() {
+        try {
+            // Validate idle connections off the request path; drop dead ones and any idle past
+            // IDLE_TIMEOUT_MILLIS beyond minSize
+            long now = System.currentTimeMillis();
+            int n = idle.size();
+            for (int i = 0; i < n; i++) {
+                // Hold a permit while a connection is out for checking, so borrowers cannot push past maxSize
+                if (!permits.tryAcquire()) break;
+                try {
+                    Connection c = idle.pollLast();
+                    if (c == null) break;
+                    Long since = idleSince.get(c);
+                    boolean surplus = idle.size() + 1 + getActive() > minSize;
+                    if (!c.isValid(VALIDATION_TIMEOUT_SECONDS)
+                            || (surplus && since != null && now - since > IDLE_TIMEOUT_MILLIS)) {
+                        idleSince.remove(c);
+                        closeQuietly(c);
+                    } else {
+                        idle.offerLast(c);
+                    }
+                } finally {
+                    permits.release();
+                }
+            }
+
+            // Top back up to minSize
+            while (!closed && idle.size() + getActive() < minSize && permits.tryAcquire()) {
+                try {
+                    Connection c = DriverManager.getConnection(url, username, password);
+                    created.incrementAndGet();
+                    idleSince.put(c, System.currentTimeMillis());
+                    idle.offerLast(c);
+                } finally {
+                    permits.release();
+                }
+            }
+
+            for (Borrow b : borrowed.values()) {
+                if (!b.reported && now - b.since > leakThresholdMillis) {
+                    b.reported = true;
+                    System.out.println("⚠️ Possible connection leak: held " + (now - b.since) + " ms by " + b.thread);
+                    b.trace.printStackTrace(System.out);
+                }
+            }
+        } catch (Exception e) {
+            System.out.println("Connection pool housekeeping failed: " + e.getMessage());
+        }
+    }
+
+    private void recordWait(long nanos) {
+        waitNanos.addAndGet(nanos);
+        maxWaitNanos.accumulateAndGet(nanos, Math::max);
+    }
+
+    private Connection wrap(Connection raw) {
+        InvocationHandler handler = new InvocationHandler() {
+            private boolean returned;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if ("close".equals(name)) {
+                    if (!returned) {
+                        returned = true;
+                        giveBack(raw);
+                    }
+                    return null;
+                }
+                if ("isClosed".equals(name)) {
+                    return returned || raw.isClosed();
+                }
+                if (returned) {
+                    throw new SQLException("Connection has been returned to the pool");
+                }
+                try {
+                    return method.invoke(raw, args);
+                } catch (InvocationTargetException e) {
+                    throw e.getCause();
+                }
+            }
+        };
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[]{Connection.class}, handler);
+    }
+
+    private static void closeQuietly(Connection c) {
+        try {
+            c.close();
+        } catch (SQLException e) {
+            // Ignore
+        }
+    }
+
+    private static class Borrow {
+        final long since = System.currentTimeMillis();
+        final String thread;
+        final Exception trace = new Exception("Connection borrowed here");
+        volatile boolean reported;
+
+        Borrow(String thread) {
+            this.thread = thread;
+        }
+    }
+}
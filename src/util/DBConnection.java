@@ -1,47 +1,57 @@
 package util;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
 import java.sql.SQLException;
 
 public class DBConnection {
 
+    // cachePrepStmts keeps parsed statements per physical connection, so pooled connections reuse them
     private static final String URL =
-            "jdbc:mysql://192.168.0.117:3306/hospital?useSSL=true&serverTimezone=UTC";
+            "jdbc:mysql://192.168.0.117:3306/hospital?useSSL=true&serverTimezone=UTC&rewriteBatchedStatements=true"
+                    + "&cachePrepStmts=true&prepStmtCacheSize=64&prepStmtCacheSqlLimit=2048";
+
+    // Pool sizing; override with -Ddb.pool.min / max / borrowTimeoutMs / leakThresholdMs
+    private static final int POOL_MIN = Integer.getInteger("db.pool.min", 2);
+    private static final int POOL_MAX = Integer.getInteger("db.pool.max", 10);
+    private static final long BORROW_TIMEOUT_MS = Long.getLong("db.pool.borrowTimeoutMs", 5_000);
+    private static final long LEAK_THRESHOLD_MS = Long.getLong("db.pool.leakThresholdMs", 60_000);
 
     private static String username = "webapp_user";
     private static String password = "STRONG_RANDOM_PASSWORD";
-    private static Connection instance;
+    private static ConnectionPool pool;
 
-    public static void setCredentials(String user, String pass) {
+    public static synchronized void setCredentials(String user, String pass) {
         username = user;
         password = pass;
         // Force reconnection on next call
         close();
     }
 
-    public static synchronized Connection getConnection() throws SQLException {
+    // Upper bound on connections, for sizing request limits that each need one
+    public static int getPoolMaxSize() {
+        return POOL_MAX;
+    }
+
+    // Borrow a connection; callers must close() it (try-with-resources) to return it to the pool
+    public static Connection getConnection() throws SQLException {
+        return getPool().borrow();
+    }
+
+    public static synchronized ConnectionPool getPool() throws SQLException {
         if (username == null || password == null) {
             throw new SQLException("Database credentials not set.");
         }
-        
-        if (instance == null || instance.isClosed() || !instance.isValid(2)) {
-            // Close silently if needed
-            close();
-            instance = DriverManager.getConnection(URL, username, password);
+
+        if (pool == null) {
+            pool = new ConnectionPool(URL, username, password, POOL_MIN, POOL_MAX, BORROW_TIMEOUT_MS, LEAK_THRESHOLD_MS);
         }
-        return instance;
+        return pool;
     }
 
     public static synchronized void close() {
-        if (instance != null) {
-            try {
-                instance.close();
-            } catch (SQLException e) {
-                // Ignore
-            } finally {
-                instance = null;
-            }
+        if (pool != null) {
+            pool.close();
+            pool = null;
         }
     }
 }